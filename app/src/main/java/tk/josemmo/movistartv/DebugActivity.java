@@ -4,17 +4,138 @@ import android.app.Activity;
 import android.content.ComponentName;
 import android.content.Context;
 import android.os.Bundle;
+import android.util.Log;
 
 import com.google.android.media.tv.companionlibrary.sync.EpgSyncJobService;
 
+import java.io.File;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import tk.josemmo.movistartv.bench.BenchmarkSuite;
+import tk.josemmo.movistartv.client.DatagramRecorder;
+import tk.josemmo.movistartv.client.TvClient;
+import tk.josemmo.movistartv.client.UdpClient;
+import tk.josemmo.movistartv.player.TuneStats;
+import tk.josemmo.movistartv.tv.PreTunePolicy;
+
 public class DebugActivity extends Activity {
+    private static final String LOGTAG = "DebugActivity";
+    private static final String EXTRA_RECORD = "record";
+    private static final String EXTRA_BENCHMARK = "bench";
+    private static final String EXTRA_EPG_DAYS = "epgDays";
+    private static final String EXTRA_PRE_TUNE = "preTune";
+    private static final String EXTRA_TUNE_STATS = "tuneStats";
+    private static final String EXTRA_PROGRAM_BATCH = "programBatch";
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
         Context context = getApplicationContext();
+
+        // Record a carousel instead of syncing, e.g. "--es record 239.0.2.129:3937"
+        String recordTarget = getIntent().getStringExtra(EXTRA_RECORD);
+        if (recordTarget != null) {
+            recordCarousel(context, recordTarget);
+            return;
+        }
+
+        // Run benchmarks instead of syncing, e.g. "--ei bench 7" for 7 EPG days
+        int benchmarkDays = getIntent().getIntExtra(EXTRA_BENCHMARK, 0);
+        if (benchmarkDays > 0) {
+            runBenchmarks(context, benchmarkDays);
+            return;
+        }
+
+        // Print tune latencies instead of syncing, e.g. "--es tuneStats dump" or "--es tuneStats reset"
+        String tuneStats = getIntent().getStringExtra(EXTRA_TUNE_STATS);
+        if (tuneStats != null) {
+            StringWriter writer = new StringWriter();
+            TuneStats.dump(new PrintWriter(writer));
+            for (String line : writer.toString().split("\n")) {
+                Log.d(LOGTAG, line);
+            }
+            if (tuneStats.equals("reset")) {
+                TuneStats.reset();
+            }
+            return;
+        }
+
+        // Toggle pre-tuning of adjacent channels instead of syncing, e.g. "--ez preTune true"
+        if (getIntent().hasExtra(EXTRA_PRE_TUNE)) {
+            boolean enabled = getIntent().getBooleanExtra(EXTRA_PRE_TUNE, false);
+            PreTunePolicy.setEnabled(context, enabled);
+            Log.d(LOGTAG, "Pre-tuning is now " + (enabled ? "enabled" : "disabled"));
+            return;
+        }
+
+        // Change EPG horizon before syncing, e.g. "--ei epgDays 7" or "--ei epgDays 0" for all
+        if (getIntent().hasExtra(EXTRA_EPG_DAYS)) {
+            TvClient.setEpgDays(context, getIntent().getIntExtra(EXTRA_EPG_DAYS, 0));
+        }
+
+        // Change provider batch size before syncing, e.g. "--ei programBatch 200" or 0 for default
+        if (getIntent().hasExtra(EXTRA_PROGRAM_BATCH)) {
+            ProgramWriter.setBatchSize(context, getIntent().getIntExtra(EXTRA_PROGRAM_BATCH, 0));
+        }
+
         String inputId = context.getSharedPreferences(EpgSyncJobService.PREFERENCE_EPG_SYNC,
                 Context.MODE_PRIVATE).getString(EpgSyncJobService.BUNDLE_KEY_INPUT_ID, null);
         EpgSyncJobService.requestImmediateSync(context, inputId, new ComponentName(context, JobService.class));
     }
+
+
+    /**
+     * Run benchmarks
+     * @param context   Context
+     * @param numOfDays Number of EPG days in fixtures
+     */
+    private void runBenchmarks(final Context context, final int numOfDays) {
+        new Thread("Benchmarks") {
+            @Override
+            public void run() {
+                ExecutorService parsePool = Executors.newSingleThreadExecutor();
+                try {
+                    new BenchmarkSuite(context, numOfDays, parsePool).runAll();
+                } catch (Exception e) {
+                    Log.e(LOGTAG, "Failed to run benchmarks");
+                    e.printStackTrace();
+                } finally {
+                    parsePool.shutdown();
+                }
+            }
+        }.start();
+    }
+
+
+    /**
+     * Record carousel to a capture file
+     * @param context Context
+     * @param target  Target formatted in host:port
+     */
+    private void recordCarousel(Context context, final String target) {
+        final File dir = new File(context.getFilesDir(), "captures");
+        new Thread("CarouselRecorder") {
+            @Override
+            public void run() {
+                File output = new File(dir, target.replace(':', '_') + ".cap");
+                try {
+                    if (!dir.isDirectory() && !dir.mkdirs()) {
+                        throw new Exception("Failed to create " + dir);
+                    }
+                    try (DatagramRecorder recorder = new DatagramRecorder(output)) {
+                        new UdpClient(target).setRecorder(recorder).downloadRaw();
+                        Log.d(LOGTAG, "Recorded " + recorder.getNumOfDatagrams() +
+                                " datagrams to " + output);
+                    }
+                } catch (Exception e) {
+                    Log.e(LOGTAG, "Failed to record carousel at " + target);
+                    e.printStackTrace();
+                }
+            }
+        }.start();
+    }
 }
@@ -0,0 +1,120 @@
+package tk.josemmo.movistartv;
+
+import android.app.job.JobParameters;
+import android.content.Context;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.List;
+
+import tk.josemmo.movistartv.client.CarouselCache;
+import tk.josemmo.movistartv.client.TvClient;
+import tk.josemmo.movistartv.client.UdpClient;
+
+/**
+ * Lightweight job which checks whether the EPG has changed since the last sync.
+ * <p>
+ * It skips the bootstrap against Movistar+ servers and only reads chunk headers from the EPG
+ * carousels, comparing their versions with the ones cached by the last full sync. A full sync
+ * is only requested when something has changed. Probes which fail (e.g. without multicast) are
+ * retried at the same period, leaving full syncs to the daily fallback.
+ */
+public class EpgProbeJobService extends android.app.job.JobService {
+    private static final String LOGTAG = "EpgProbeJobService";
+
+    private Thread worker = null;
+    private volatile UdpClient client = null;
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        final Context context = getApplicationContext();
+        final String inputId = SyncScheduler.getInputId(context);
+        if (inputId == null) {
+            Log.d(LOGTAG, "Input has not been set up, probing again later");
+            SyncScheduler.scheduleProbe(context);
+            return false;
+        }
+
+        worker = new Thread("EpgProbe") {
+            @Override
+            public void run() {
+                boolean changed = false;
+                boolean failed = false;
+                try {
+                    changed = hasChanges(context);
+                } catch (Exception e) {
+                    Log.e(LOGTAG, "Failed to probe EPG");
+                    e.printStackTrace();
+                    failed = true;
+                }
+                if (isInterrupted()) return;
+
+                if (changed) {
+                    Log.d(LOGTAG, "EPG has changed, requesting full sync");
+                    SyncScheduler.requestSync(context, inputId);
+                } else if (SyncScheduler.isSyncDue(context)) {
+                    Log.d(LOGTAG, "Last full sync is too old, requesting full sync");
+                    SyncScheduler.requestSync(context, inputId);
+                } else if (!failed) {
+                    Log.d(LOGTAG, "EPG has not changed");
+                }
+
+                // A failed probe says nothing about the EPG, so it does not adapt the period
+                if (failed) {
+                    SyncScheduler.scheduleProbe(context);
+                } else {
+                    SyncScheduler.onProbeFinished(context, changed);
+                }
+                jobFinished(params, false);
+            }
+        };
+        worker.start();
+        return true;
+    }
+
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        if (worker != null) {
+            worker.interrupt();
+            worker = null;
+        }
+        UdpClient current = client;
+        if (current != null) {
+            current.cancel();
+        }
+        SyncScheduler.scheduleProbe(getApplicationContext());
+        return false;
+    }
+
+
+    /**
+     * Has changes
+     * <p>
+     * Every carousel is listened to for a whole cycle unless a changed file shows up earlier.
+     * @param  context Context
+     * @return         Whether any EPG carousel inside the horizon has changed
+     */
+    private boolean hasChanges(Context context) throws Exception {
+        List<String> entrypoints = TvClient.getEpgHorizon(context);
+        if (entrypoints.isEmpty()) return true;
+
+        CarouselCache cache = new CarouselCache(context);
+        for (String entrypoint : entrypoints) {
+            HashMap<String, Integer> versions = cache.getVersions(entrypoint);
+            if (versions.isEmpty()) return true;
+
+            client = new UdpClient(entrypoint)
+                    .setKnownVersions(versions)
+                    .setProbeOnly(true);
+            try {
+                client.downloadRaw();
+                if (client.hasChanges()) return true;
+            } finally {
+                client = null;
+            }
+        }
+        return false;
+    }
+
+}
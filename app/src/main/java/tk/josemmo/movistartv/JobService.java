@@ -5,24 +5,30 @@ import android.net.Uri;
 import android.util.Log;
 import android.util.SparseArray;
 
+import androidx.annotation.VisibleForTesting;
+
 import com.google.android.media.tv.companionlibrary.model.Channel;
 import com.google.android.media.tv.companionlibrary.model.InternalProviderData;
 import com.google.android.media.tv.companionlibrary.model.Program;
 import com.google.android.media.tv.companionlibrary.sync.EpgSyncJobService;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-
 import java.util.ArrayList;
 import java.util.List;
 
+import tk.josemmo.movistartv.client.ChannelInfo;
+import tk.josemmo.movistartv.client.EpgData;
+import tk.josemmo.movistartv.client.EpgPrograms;
+import tk.josemmo.movistartv.client.EpgStore;
+import tk.josemmo.movistartv.client.EpgWindow;
 import tk.josemmo.movistartv.client.TvClient;
 
 public class JobService extends EpgSyncJobService {
     private static final String LOGTAG = "JobService";
 
     private TvClient tvClient = null;
-    private SparseArray<ArrayList<JSONObject>> epg = null;
+    private EpgData epg = null;
+    private ProgramWriter programWriter = null;
+    private final SparseArray<ChannelInfo> channelsByDial = new SparseArray<>();
 
     /**
      * Get TV client
@@ -36,27 +42,37 @@ public class JobService extends EpgSyncJobService {
     }
 
 
+    /**
+     * Get EPG service name
+     * @param  channel Channel from the TV provider
+     * @return         Service name used for EPG data
+     */
+    private int getEpgServiceName(Channel channel) throws InternalProviderData.ParseException {
+        ChannelInfo info = channelsByDial.get(channel.getOriginalNetworkId());
+        if (info != null) {
+            return info.epgServiceName;
+        }
+        return ChannelInfo.getEpgServiceName(channel.getInternalProviderData());
+    }
+
+
     @Override
     public List<Channel> getChannels() throws EpgSyncException {
         Log.d(LOGTAG, "Received a petition for the list of channels");
 
         ArrayList<Channel> parsedChannels = new ArrayList<>();
         try {
-            ArrayList<JSONObject> channels = getTvClient().getChannelsList();
-
-            for (JSONObject channel : channels) {
-                int dial = channel.getInt("dial");
-                InternalProviderData data = new InternalProviderData();
-                data.setVideoUrl(channel.getString("mCastAddress"));
-                data.put("serviceName", channel.getInt("serviceName"));
-                data.put("epgServiceName", channel.getInt("epgServiceName"));
+            ArrayList<ChannelInfo> channels = getTvClient().getChannelsList();
+
+            for (ChannelInfo channel : channels) {
+                channelsByDial.put(channel.dial, channel);
                 parsedChannels.add(new Channel.Builder()
-                    .setOriginalNetworkId(dial)
-                    .setDisplayName(channel.getString("name"))
-                    .setDescription(channel.getString("description"))
-                    .setDisplayNumber(dial + "")
-                    .setChannelLogo(channel.getString("logoUri"))
-                    .setInternalProviderData(data)
+                    .setOriginalNetworkId(channel.dial)
+                    .setDisplayName(channel.name)
+                    .setDescription(channel.description)
+                    .setDisplayNumber(Integer.toString(channel.dial))
+                    .setChannelLogo(channel.logoUri)
+                    .setInternalProviderData(channel.toInternalProviderData())
                     .build()
                 );
             }
@@ -78,57 +94,113 @@ public class JobService extends EpgSyncJobService {
             } catch (Exception e) {
                 Log.e(LOGTAG, "Failed to get EPG data");
                 e.printStackTrace();
-                epg = new SparseArray<>();
+                epg = getTvClient().getCachedEpgData();
+                if (epg == null) {
+                    epg = new EpgStore.Builder().build();
+                }
             }
         }
 
         // Return programs for channel
         List<Program> res = new ArrayList<>();
         try {
-            InternalProviderData internalData = channel.getInternalProviderData();
-            int epgServiceName = Integer.parseInt(internalData.get("epgServiceName").toString());
+            int epgServiceName = getEpgServiceName(channel);
             Log.d(LOGTAG, "Received petition for the EPG of epgServiceName=" + epgServiceName);
 
-            for (JSONObject data : epg.get(epgServiceName, new ArrayList<JSONObject>())) {
-                try {
-                    long startTime = data.getLong("start") * 1000;
-                    long endTime = data.getLong("end") * 1000;
-                    int season = data.getInt("season");
-                    int episode = data.getInt("episode");
-                    TvContentRating[] ratings = new TvContentRating[1];
-                    ratings[0] = parseAgeRating(data.getInt("ageRating"));
-
-                    Program.Builder programBuilder = new Program.Builder()
-                            .setTitle(data.getString("title"))
-                            .setPosterArtUri(data.getString("coverPath"))
-                            .setContentRatings(ratings)
-                            .setStartTimeUtcMillis(startTime)
-                            .setEndTimeUtcMillis(endTime);
-                    if (season > 0 && episode > 0) {
-                        programBuilder.setSeasonNumber(season).setEpisodeNumber(episode);
-                    }
-
-                    res.add(programBuilder.build());
-                } catch (JSONException e2) {
-                    Log.e(LOGTAG, "Invalid program data, skipping");
-                    e2.printStackTrace();
-                }
+            EpgPrograms programs = epg.getPrograms(epgServiceName);
+            if (programs != null) {
+                res = buildPrograms(programs, startMs, endMs, getTvClient());
             }
-
             Log.d(LOGTAG, "Finished getting EPG for epgServiceName=" + epgServiceName);
         } catch (InternalProviderData.ParseException e) {
             Log.e(LOGTAG, "Failed to get epgServiceName from channel");
         }
+
+        // Write and flush programs of this channel, so a failure can still be handed back to the
+        // companion library, which does not touch the provider for channels with no programs.
+        // Large channels are split into transactions of the configured batch size.
+        if (res.isEmpty()) {
+            return res;
+        }
+        if (programWriter == null) {
+            programWriter = new ProgramWriter(getContentResolver())
+                    .setBatchSize(ProgramWriter.getBatchSize(this));
+        }
+        try {
+            programWriter.write(channel.getId(), res, startMs, endMs);
+            programWriter.flush();
+            return new ArrayList<>();
+        } catch (Exception e) {
+            Log.e(LOGTAG, "Failed to write programs, leaving it to the companion library");
+            e.printStackTrace();
+            programWriter.discard();
+            return res;
+        }
+    }
+
+
+    /**
+     * Build programs
+     * @param  programs Programs of a channel from EPG
+     * @param  startMs  Window start in milliseconds since epoch
+     * @param  endMs    Window end in milliseconds since epoch
+     * @param  tvClient TV client for resolving cover paths
+     * @return          Program instances overlapping the window
+     */
+    @VisibleForTesting
+    public static List<Program> buildPrograms(EpgPrograms programs, long startMs, long endMs,
+                                              TvClient tvClient) {
+        int start = toSeconds(startMs);
+        int end = toSeconds(endMs + 999);
+        EpgWindow window = EpgWindow.find(programs, start, end);
+
+        List<Program> res = new ArrayList<>(window.size());
+        for (int i=window.from; i<window.to; i++) {
+            if (!EpgWindow.overlaps(programs, i, start, end)) continue;
+            try {
+                long startTime = programs.getStart(i) * 1000L;
+                long endTime = programs.getEnd(i) * 1000L;
+                TvContentRating[] ratings = new TvContentRating[1];
+                ratings[0] = parseAgeRating(programs.getAgeRating(i));
+
+                Program.Builder programBuilder = new Program.Builder()
+                        .setTitle(programs.getTitle(i))
+                        .setPosterArtUri(tvClient.getFullCoverPath(programs.getPId(i)))
+                        .setContentRatings(ratings)
+                        .setStartTimeUtcMillis(startTime)
+                        .setEndTimeUtcMillis(endTime);
+                int season = programs.getSeason(i);
+                int episode = programs.getEpisode(i);
+                if (season > 0 && episode > 0) {
+                    programBuilder.setSeasonNumber(season).setEpisodeNumber(episode);
+                }
+
+                res.add(programBuilder.build());
+            } catch (Exception e) {
+                Log.e(LOGTAG, "Invalid program data, skipping");
+                e.printStackTrace();
+            }
+        }
         return res;
     }
 
 
+    /**
+     * To seconds
+     * @param  ms Time in milliseconds since epoch
+     * @return    Time in seconds since epoch, rounded down and clamped to integer range
+     */
+    private static int toSeconds(long ms) {
+        return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, ms / 1000));
+    }
+
+
     /**
      * Parse age rating
      * @param  code Age rating code
      * @return      Android TV content rating instance
      */
-    private TvContentRating parseAgeRating(int code) {
+    private static TvContentRating parseAgeRating(int code) {
         String rating = "ES_DVB_ALL";
         switch (code) {
             case 3:
@@ -0,0 +1,212 @@
+package tk.josemmo.movistartv;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.media.tv.TvContract;
+import android.util.Log;
+
+import com.google.android.media.tv.companionlibrary.model.Program;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Writes programs to the TV provider in batches.
+ * <p>
+ * New programs are diffed against the rows the provider already holds for the same channel and
+ * time window, matched by start time. Unchanged rows are never rewritten, changed rows are
+ * updated in place, and the rest are deleted or inserted. Operations are queued and only sent
+ * to the provider once the batch size has been reached or {@link #flush()} is called. They are
+ * dequeued as soon as they are applied, so a failed flush leaves the rest pending until they
+ * are flushed again or {@link #discard() discarded}.
+ */
+public class ProgramWriter {
+    private static final String LOGTAG = "ProgramWriter";
+    private static final String PREFS_NAME = "ProgramWriter";
+    private static final String BATCH_SIZE_KEY = "batchSize";
+    public static final int DEFAULT_BATCH_SIZE = 500;
+
+    private final ContentResolver resolver;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private final ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+    private final ArrayList<ContentValues> inserts = new ArrayList<>();
+    private int numOfUnchanged = 0;
+    private int numOfUpdated = 0;
+    private int numOfDeleted = 0;
+    private int numOfInserted = 0;
+
+    /**
+     * ProgramWriter constructor
+     * @param resolver Content resolver
+     */
+    public ProgramWriter(ContentResolver resolver) {
+        this.resolver = resolver;
+    }
+
+
+    /**
+     * Get configured batch size
+     * @param  ctx Context
+     * @return     Maximum number of operations per provider transaction
+     */
+    public static int getBatchSize(Context ctx) {
+        return ctx.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+                .getInt(BATCH_SIZE_KEY, DEFAULT_BATCH_SIZE);
+    }
+
+
+    /**
+     * Set configured batch size
+     * @param ctx       Context
+     * @param batchSize Maximum number of operations per provider transaction, zero for default
+     */
+    public static void setBatchSize(Context ctx, int batchSize) {
+        ctx.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+                .edit()
+                .putInt(BATCH_SIZE_KEY, (batchSize > 0) ? batchSize : DEFAULT_BATCH_SIZE)
+                .apply();
+    }
+
+
+    /**
+     * Set batch size
+     * @param  batchSize Maximum number of operations per provider transaction
+     * @return           This instance
+     */
+    public ProgramWriter setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+        return this;
+    }
+
+
+    /**
+     * Write programs of a channel
+     * @param channelId Channel ID in the TV provider
+     * @param programs  Programs overlapping the window, sorted by start time
+     * @param startMs   Window start in milliseconds since epoch
+     * @param endMs     Window end in milliseconds since epoch
+     */
+    public void write(long channelId, List<Program> programs, long startMs, long endMs)
+            throws Exception {
+        // Index new programs by start time
+        HashMap<Long, ContentValues> pending = new HashMap<>();
+        ArrayList<Long> startTimes = new ArrayList<>(programs.size());
+        for (Program program : programs) {
+            Long startTime = program.getStartTimeUtcMillis();
+            if (pending.containsKey(startTime)) continue;
+            ContentValues values = program.toContentValues();
+            values.put(TvContract.Programs.COLUMN_CHANNEL_ID, channelId);
+            pending.put(startTime, values);
+            startTimes.add(startTime);
+        }
+
+        // Diff against current rows
+        Cursor cursor = resolver.query(
+                TvContract.buildProgramsUriForChannel(channelId, startMs, endMs),
+                null, null, null, null);
+        if (cursor != null) {
+            try {
+                int idColumn = cursor.getColumnIndex(TvContract.Programs._ID);
+                int startColumn = cursor.getColumnIndex(
+                        TvContract.Programs.COLUMN_START_TIME_UTC_MILLIS);
+                while (cursor.moveToNext()) {
+                    long id = cursor.getLong(idColumn);
+                    ContentValues values = pending.remove(cursor.getLong(startColumn));
+                    if (values == null) {
+                        operations.add(ContentProviderOperation
+                                .newDelete(TvContract.buildProgramUri(id))
+                                .build());
+                        numOfDeleted++;
+                    } else if (isSameRow(cursor, values)) {
+                        numOfUnchanged++;
+                    } else {
+                        operations.add(ContentProviderOperation
+                                .newUpdate(TvContract.buildProgramUri(id))
+                                .withValues(values)
+                                .build());
+                        numOfUpdated++;
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        // Insert the rest
+        for (Long startTime : startTimes) {
+            ContentValues values = pending.get(startTime);
+            if (values != null) {
+                inserts.add(values);
+                numOfInserted++;
+            }
+        }
+
+        if (operations.size() >= batchSize || inserts.size() >= batchSize) {
+            flush();
+        }
+    }
+
+
+    /**
+     * Flush pending operations
+     */
+    public void flush() throws Exception {
+        while (!operations.isEmpty()) {
+            List<ContentProviderOperation> batch =
+                    operations.subList(0, Math.min(batchSize, operations.size()));
+            resolver.applyBatch(TvContract.AUTHORITY, new ArrayList<>(batch));
+            batch.clear();
+        }
+        while (!inserts.isEmpty()) {
+            List<ContentValues> batch = inserts.subList(0, Math.min(batchSize, inserts.size()));
+            resolver.bulkInsert(TvContract.Programs.CONTENT_URI,
+                    batch.toArray(new ContentValues[0]));
+            batch.clear();
+        }
+        Log.d(LOGTAG, "Flushed programs (" + numOfUnchanged + " unchanged, " + numOfUpdated +
+                " updated, " + numOfDeleted + " deleted, " + numOfInserted + " inserted)");
+    }
+
+
+    /**
+     * Discard pending operations
+     * <p>
+     * Drops every operation which has not been applied yet, for when the caller writes those
+     * programs by other means after a failed flush.
+     */
+    public void discard() {
+        operations.clear();
+        inserts.clear();
+    }
+
+
+    /**
+     * Is same row
+     * @param  cursor Cursor pointing to current row
+     * @param  values New values
+     * @return        Whether all new values are already in that row
+     */
+    private static boolean isSameRow(Cursor cursor, ContentValues values) {
+        for (String key : values.keySet()) {
+            int column = cursor.getColumnIndex(key);
+            if (column < 0) continue;
+            Object value = values.get(key);
+            if (value == null) {
+                if (!cursor.isNull(column)) return false;
+            } else if (cursor.isNull(column)) {
+                return false;
+            } else if (value instanceof byte[]) {
+                if (!Arrays.equals((byte[]) value, cursor.getBlob(column))) return false;
+            } else if (!value.toString().equals(cursor.getString(column))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,144 @@
+package tk.josemmo.movistartv;
+
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.google.android.media.tv.companionlibrary.sync.EpgSyncJobService;
+
+/**
+ * Schedules EPG probes with an adaptive period.
+ * <p>
+ * Every probe checks whether the EPG carousels have changed and only then requests a full sync,
+ * so probes replace the periodic full sync of the companion library. The period between probes
+ * is halved whenever a change is found and slowly relaxed while versions stay the same, so it
+ * follows how often the EPG is actually updated. A full sync is still forced once a day.
+ */
+public class SyncScheduler {
+    private static final String LOGTAG = "SyncScheduler";
+    private static final String PREFS_NAME = "SyncScheduler";
+    private static final String PERIOD_KEY = "probePeriod";
+    private static final String LAST_SYNC_KEY = "lastSyncRequest";
+    private static final int PROBE_JOB_ID = 100;
+    public static final long MIN_PROBE_PERIOD_MS = 15 * 60 * 1000L;
+    public static final long MAX_PROBE_PERIOD_MS = 6 * 60 * 60 * 1000L;
+    public static final long DEFAULT_PROBE_PERIOD_MS = 60 * 60 * 1000L;
+    public static final long MAX_SYNC_AGE_MS = 24 * 60 * 60 * 1000L;
+
+    /**
+     * Get shared preferences
+     * @param  ctx Context
+     * @return     Shared preferences
+     */
+    private static SharedPreferences getPrefs(Context ctx) {
+        return ctx.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+
+    /**
+     * Get input ID
+     * @param  ctx Context
+     * @return     TV input ID or NULL if the input has not been set up yet
+     */
+    static String getInputId(Context ctx) {
+        return ctx.getSharedPreferences(EpgSyncJobService.PREFERENCE_EPG_SYNC, Context.MODE_PRIVATE)
+                .getString(EpgSyncJobService.BUNDLE_KEY_INPUT_ID, null);
+    }
+
+
+    /**
+     * Get probe period
+     * @param  ctx Context
+     * @return     Current period between probes in milliseconds
+     */
+    public static long getProbePeriod(Context ctx) {
+        return getPrefs(ctx).getLong(PERIOD_KEY, DEFAULT_PROBE_PERIOD_MS);
+    }
+
+
+    /**
+     * Is full sync due
+     * @param  ctx Context
+     * @return     Whether too much time has passed since the last full sync was requested
+     */
+    static boolean isSyncDue(Context ctx) {
+        long lastSync = getPrefs(ctx).getLong(LAST_SYNC_KEY, 0);
+        return System.currentTimeMillis() - lastSync >= MAX_SYNC_AGE_MS;
+    }
+
+
+    /**
+     * Request full sync
+     * @param ctx     Context
+     * @param inputId TV input ID
+     */
+    static void requestSync(Context ctx, String inputId) {
+        getPrefs(ctx).edit().putLong(LAST_SYNC_KEY, System.currentTimeMillis()).apply();
+        EpgSyncJobService.requestImmediateSync(ctx, inputId, new ComponentName(ctx, JobService.class));
+    }
+
+
+    /**
+     * Cancel periodic sync
+     * <p>
+     * Removes the periodic full sync set up by the companion library, which would otherwise
+     * run regardless of what probes find.
+     * @param ctx Context
+     */
+    private static void cancelPeriodicSync(Context ctx) {
+        JobScheduler scheduler = (JobScheduler) ctx.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        for (JobInfo job : scheduler.getAllPendingJobs()) {
+            if (job.isPeriodic() && JobService.class.getName().equals(job.getService().getClassName())) {
+                scheduler.cancel(job.getId());
+                Log.d(LOGTAG, "Cancelled periodic sync in favor of EPG probes");
+            }
+        }
+    }
+
+
+    /**
+     * Schedule next probe
+     * <p>
+     * Also cancels the periodic full sync, as probes request full syncs when needed.
+     * @param ctx Context
+     */
+    public static void scheduleProbe(Context ctx) {
+        cancelPeriodicSync(ctx);
+        long period = getProbePeriod(ctx);
+        JobInfo job = new JobInfo.Builder(PROBE_JOB_ID, new ComponentName(ctx, EpgProbeJobService.class))
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
+                .setMinimumLatency(period)
+                .setPersisted(true)
+                .build();
+        JobScheduler scheduler = (JobScheduler) ctx.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        if (scheduler.schedule(job) == JobScheduler.RESULT_SUCCESS) {
+            Log.d(LOGTAG, "Scheduled EPG probe in " + (period / 60000) + " minutes");
+        } else {
+            Log.e(LOGTAG, "Failed to schedule EPG probe");
+        }
+    }
+
+
+    /**
+     * On probe finished
+     * <p>
+     * Adapts the probe period and schedules the next probe. Failed probes must not be reported
+     * here, they only call {@link #scheduleProbe(Context)} to keep the current period.
+     * @param ctx     Context
+     * @param changed Whether the probe found changes
+     */
+    public static void onProbeFinished(Context ctx, boolean changed) {
+        long period = getProbePeriod(ctx);
+        if (changed) {
+            period = Math.max(MIN_PROBE_PERIOD_MS, period / 2);
+        } else {
+            period = Math.min(MAX_PROBE_PERIOD_MS, period + period / 2);
+        }
+        getPrefs(ctx).edit().putLong(PERIOD_KEY, period).apply();
+        scheduleProbe(ctx);
+    }
+
+}
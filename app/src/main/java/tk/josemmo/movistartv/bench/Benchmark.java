@@ -0,0 +1,153 @@
+package tk.josemmo.movistartv.bench;
+
+import android.os.Build;
+import android.os.Debug;
+
+/**
+ * A single microbenchmark.
+ * <p>
+ * Each benchmark runs its operation repeatedly during a warmup period and then during a
+ * measurement period, reporting throughput together with the allocation and garbage collection
+ * activity of the runtime while measuring.
+ */
+public abstract class Benchmark {
+    private final String name;
+
+    /**
+     * Benchmark constructor
+     * @param name Benchmark name
+     */
+    protected Benchmark(String name) {
+        this.name = name;
+    }
+
+
+    /**
+     * Get name
+     * @return Benchmark name
+     */
+    public String getName() {
+        return name;
+    }
+
+
+    /**
+     * Run a single operation
+     * @return Any value derived from the result, so the work cannot be optimized away
+     */
+    protected abstract Object runOperation() throws Exception;
+
+
+    /**
+     * Measure benchmark
+     * @param  warmupMs  Warmup time in milliseconds
+     * @param  measureMs Measurement time in milliseconds
+     * @return           Measurement result
+     */
+    public Result measure(long warmupMs, long measureMs) throws Exception {
+        int blackhole = 0;
+
+        // Warmup
+        long deadline = System.nanoTime() + warmupMs * 1000000L;
+        while (System.nanoTime() < deadline) {
+            blackhole ^= System.identityHashCode(runOperation());
+        }
+
+        // Measure
+        Result res = new Result(name);
+        long allocatedBefore = getRuntimeStat("art.gc.bytes-allocated");
+        long gcCountBefore = getRuntimeStat("art.gc.gc-count");
+        long gcTimeBefore = getRuntimeStat("art.gc.gc-time");
+        long start = System.nanoTime();
+        deadline = start + measureMs * 1000000L;
+        do {
+            blackhole ^= System.identityHashCode(runOperation());
+            res.operations++;
+        } while (System.nanoTime() < deadline);
+        res.elapsedNanos = System.nanoTime() - start;
+        res.allocatedBytes = delta(allocatedBefore, getRuntimeStat("art.gc.bytes-allocated"));
+        res.gcCount = delta(gcCountBefore, getRuntimeStat("art.gc.gc-count"));
+        res.gcTimeMs = delta(gcTimeBefore, getRuntimeStat("art.gc.gc-time"));
+        res.blackhole = blackhole;
+
+        return res;
+    }
+
+
+    /**
+     * Get runtime statistic
+     * @param  statName Statistic name
+     * @return          Statistic value or -1 if not available
+     */
+    private static long getRuntimeStat(String statName) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) return -1;
+        String value = Debug.getRuntimeStat(statName);
+        if (value == null) return -1;
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+
+    /**
+     * Get delta between two statistics
+     * @param  before Value before measuring
+     * @param  after  Value after measuring
+     * @return        Delta or -1 if not available
+     */
+    private static long delta(long before, long after) {
+        return (before < 0 || after < 0) ? -1 : after - before;
+    }
+
+
+    /**
+     * Benchmark result
+     */
+    public static class Result {
+        public final String name;
+        public long operations = 0;
+        public long elapsedNanos = 0;
+        public long allocatedBytes = -1;
+        public long gcCount = -1;
+        public long gcTimeMs = -1;
+        int blackhole;
+
+        Result(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Get operations per second
+         * @return Throughput
+         */
+        public double getOpsPerSecond() {
+            return operations * 1e9 / elapsedNanos;
+        }
+
+        /**
+         * Get allocated bytes per operation
+         * @return Normalized allocation or -1 if not available
+         */
+        public long getAllocatedBytesPerOp() {
+            return (allocatedBytes < 0) ? -1 : allocatedBytes / operations;
+        }
+
+        /**
+         * Get allocation rate
+         * @return Allocated megabytes per second or -1 if not available
+         */
+        public double getAllocationRate() {
+            return (allocatedBytes < 0) ? -1 : allocatedBytes * 1e9 / elapsedNanos / 1048576;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-32s %10.2f ops/s %12d B/op %8.1f MB/s %4d GCs %6d ms",
+                    name, getOpsPerSecond(), getAllocatedBytesPerOp(), getAllocationRate(),
+                    gcCount, gcTimeMs);
+        }
+    }
+
+}
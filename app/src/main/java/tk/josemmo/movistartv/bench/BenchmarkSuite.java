@@ -0,0 +1,189 @@
+package tk.josemmo.movistartv.bench;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import tk.josemmo.movistartv.JobService;
+import tk.josemmo.movistartv.client.EpgDownloader;
+import tk.josemmo.movistartv.client.EpgStore;
+import tk.josemmo.movistartv.client.EpgVisitor;
+import tk.josemmo.movistartv.client.ServiceDiscovery;
+import tk.josemmo.movistartv.client.ServiceDiscoveryParser;
+import tk.josemmo.movistartv.client.TvClient;
+import tk.josemmo.movistartv.client.UdpClient;
+
+/**
+ * Benchmarks for the hot paths of an EPG sync, run against synthetic fixtures.
+ * <p>
+ * Can be launched from the command line through {@link tk.josemmo.movistartv.DebugActivity},
+ * results are written to the log.
+ */
+public class BenchmarkSuite {
+    private static final String LOGTAG = "BenchmarkSuite";
+    public static final int DEFAULT_NUM_OF_CHANNELS = 150;
+    public static final long WARMUP_MS = 3000;
+    public static final long MEASURE_MS = 10000;
+
+    private final Fixtures fixtures;
+    private final ArrayList<Benchmark> benchmarks = new ArrayList<>();
+
+    /**
+     * BenchmarkSuite constructor
+     * @param ctx       Context
+     * @param numOfDays Number of EPG days in fixtures
+     * @param parsePool Pool for the EPG downloader, owned and shut down by the caller
+     */
+    public BenchmarkSuite(Context ctx, int numOfDays, ExecutorService parsePool) throws Exception {
+        fixtures = new Fixtures(DEFAULT_NUM_OF_CHANNELS, numOfDays);
+        final ArrayList<byte[]> epgFiles = fixtures.buildEpgFiles();
+        final ArrayList<byte[]> datagrams = Fixtures.buildDatagrams(epgFiles, 1);
+        final ArrayList<byte[]> discoveryFiles = new ArrayList<>();
+        for (String file : fixtures.buildServiceDiscoveryFiles()) {
+            discoveryFiles.add(file.getBytes(StandardCharsets.UTF_8));
+        }
+        final EpgDownloader epgDownloader = new EpgDownloader("127.0.0.1:0", null, null,
+                parsePool, new EpgStore.Builder());
+        final TvClient tvClient = new TvClient(ctx,
+                Collections.singletonList(Fixtures.TV_PACKAGE), "http://127.0.0.1/");
+
+        // Programs as stored by the sync job, for the conversion benchmark
+        EpgStore.Builder builder = new EpgStore.Builder();
+        for (byte[] epgFile : epgFiles) {
+            epgDownloader.parseEpgFile(epgFile, epgFile.length, builder);
+        }
+        final EpgStore programs = builder.build();
+        Log.d(LOGTAG, "Fixtures have " + epgFiles.size() + " EPG files, " + datagrams.size() +
+                " datagrams and " + programs.getNumOfPrograms() + " programs");
+
+        benchmarks.add(new Benchmark("UdpClient.parseChunk") {
+            @Override
+            protected Object runOperation() {
+                UdpClient client = new UdpClient("127.0.0.1:0");
+                for (byte[] datagram : datagrams) {
+                    client.parseChunk(ByteBuffer.wrap(datagram));
+                }
+                return client.parseChunk(ByteBuffer.wrap(datagrams.get(0)));
+            }
+        });
+        benchmarks.add(new Benchmark("EpgDownloader.parseEpgFile") {
+            @Override
+            protected Object runOperation() {
+                CountingVisitor visitor = new CountingVisitor();
+                for (byte[] epgFile : epgFiles) {
+                    epgDownloader.parseEpgFile(epgFile, epgFile.length, visitor);
+                }
+                return visitor.numOfPrograms;
+            }
+        });
+        benchmarks.add(new Benchmark("EpgStore.Builder") {
+            @Override
+            protected Object runOperation() {
+                EpgStore.Builder builder = new EpgStore.Builder();
+                for (byte[] epgFile : epgFiles) {
+                    epgDownloader.parseEpgFile(epgFile, epgFile.length, builder);
+                }
+                return builder.build();
+            }
+        });
+        benchmarks.add(new Benchmark("EpgDownloader.parseEpgString") {
+            private final byte[] title = "Vbgtqyf|b{v5Vt|{p".getBytes();
+
+            @Override
+            protected Object runOperation() {
+                int res = 0;
+                for (int i=0; i<1000; i++) {
+                    res += EpgDownloader.parseEpgString(title.clone()).length();
+                }
+                return res;
+            }
+        });
+        benchmarks.add(new Benchmark("ServiceDiscoveryParser.parse") {
+            @Override
+            protected Object runOperation() throws Exception {
+                ServiceDiscovery res = new ServiceDiscovery();
+                for (byte[] file : discoveryFiles) {
+                    ServiceDiscoveryParser.parse(file, file.length, res);
+                }
+                return res;
+            }
+        });
+        benchmarks.add(new Benchmark("TvClient.parseChannelsList") {
+            @Override
+            protected Object runOperation() throws Exception {
+                ServiceDiscovery discovery = new ServiceDiscovery();
+                for (byte[] file : discoveryFiles) {
+                    ServiceDiscoveryParser.parse(file, file.length, discovery);
+                }
+                return tvClient.parseChannelsList(discovery);
+            }
+        });
+        benchmarks.add(new Benchmark("JobService.buildPrograms") {
+            @Override
+            protected Object runOperation() {
+                Object res = null;
+                for (int i=0; i<programs.getNumOfPartitions(); i++) {
+                    res = JobService.buildPrograms(programs.getPartitionAt(i), 0, Long.MAX_VALUE,
+                            tvClient);
+                }
+                return res;
+            }
+        });
+        benchmarks.add(new Benchmark("JobService.buildPrograms (3h window)") {
+            private final long startMs = programs.getPartitionAt(0).getStart(0) * 1000L + 43200000;
+
+            @Override
+            protected Object runOperation() {
+                Object res = null;
+                for (int i=0; i<programs.getNumOfPartitions(); i++) {
+                    res = JobService.buildPrograms(programs.getPartitionAt(i), startMs,
+                            startMs + 10800000, tvClient);
+                }
+                return res;
+            }
+        });
+    }
+
+
+    /**
+     * EPG visitor which only counts programs
+     */
+    private static class CountingVisitor implements EpgVisitor {
+        int numOfPrograms = 0;
+
+        @Override
+        public boolean onFile(int epgServiceName, int serviceVersion, String serviceUrl) {
+            return true;
+        }
+
+        @Override
+        public void onProgram(int pId, int start, int end, int genre, int ageRating, String title,
+                              int year, int tvShowId, int season, int episode, String tvShowName) {
+            numOfPrograms++;
+        }
+    }
+
+
+    /**
+     * Run all benchmarks
+     * @return Benchmark results
+     */
+    public List<Benchmark.Result> runAll() throws Exception {
+        Log.i(LOGTAG, "Running benchmarks with " + fixtures.getNumOfChannels() + " channels and " +
+                fixtures.getNumOfDays() + " EPG days");
+        List<Benchmark.Result> res = new ArrayList<>();
+        for (Benchmark benchmark : benchmarks) {
+            Benchmark.Result result = benchmark.measure(WARMUP_MS, MEASURE_MS);
+            Log.i(LOGTAG, result.toString());
+            res.add(result);
+        }
+        return res;
+    }
+
+}
@@ -0,0 +1,260 @@
+package tk.josemmo.movistartv.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Synthetic fixtures shaped like the data sent by Movistar+, so benchmarks can run offline
+ * against realistic sizes.
+ */
+public class Fixtures {
+    public static final String TV_PACKAGE = "UTX32";
+    public static final int SEGMENT_SIZE = 1400;
+    private static final int DAY_SECONDS = 86400;
+    private static final int FIRST_SERVICE_NAME = 1000;
+    private static final byte[] STOVER = "default|STOVER".getBytes(StandardCharsets.US_ASCII);
+    private static final String[] WORDS = {
+        "Noticias", "Cine", "La", "Noche", "Deportes", "Documental", "Serie", "Especial",
+        "Directo", "Informativo", "Tarde", "Mañana", "Fútbol", "Historia", "Viajes", "Cocina"
+    };
+
+    private final int numOfChannels;
+    private final int numOfDays;
+    private final Random random = new Random(42);
+    private final long firstDay = 1600000000L - (1600000000L % DAY_SECONDS);
+
+    /**
+     * Fixtures constructor
+     * @param numOfChannels Number of channels
+     * @param numOfDays     Number of EPG days
+     */
+    public Fixtures(int numOfChannels, int numOfDays) {
+        this.numOfChannels = numOfChannels;
+        this.numOfDays = numOfDays;
+    }
+
+
+    /**
+     * Get number of channels
+     * @return Number of channels
+     */
+    public int getNumOfChannels() {
+        return numOfChannels;
+    }
+
+
+    /**
+     * Get number of days
+     * @return Number of days
+     */
+    public int getNumOfDays() {
+        return numOfDays;
+    }
+
+
+    /**
+     * Build EPG files
+     * @return One binary EPG file per channel and day
+     */
+    public ArrayList<byte[]> buildEpgFiles() {
+        ArrayList<byte[]> res = new ArrayList<>();
+        for (int day=0; day<numOfDays; day++) {
+            for (int i=0; i<numOfChannels; i++) {
+                res.add(buildEpgFile(FIRST_SERVICE_NAME + i, day));
+            }
+        }
+        return res;
+    }
+
+
+    /**
+     * Build EPG file
+     * @param  epgServiceName EPG service name
+     * @param  day            Day index
+     * @return                Binary EPG file
+     */
+    public byte[] buildEpgFile(int epgServiceName, int day) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] url = (epgServiceName + ".imagenio.es").getBytes(StandardCharsets.US_ASCII);
+        out.write(new byte[5], 0, 5);
+        out.write(1);
+        out.write(url.length);
+        out.write(url, 0, url.length);
+
+        long start = firstDay + (long) day * DAY_SECONDS;
+        long end = start + DAY_SECONDS;
+        int pId = 10000000 + epgServiceName * 1000 + day * 100;
+        while (start < end) {
+            int duration = 900 + random.nextInt(90) * 60;
+            byte[] title = encodeEpgString(randomTitle());
+            byte[] tvShowName = encodeEpgString(randomTitle());
+
+            byte[] record = new byte[32];
+            writeInt(record, 0, pId++);
+            writeInt(record, 4, (int) start);
+            record[8] = (byte) (duration >> 8);
+            record[9] = (byte) duration;
+            record[20] = (byte) random.nextInt(16);
+            record[24] = (byte) random.nextInt(8);
+            record[31] = (byte) title.length;
+            out.write(record, 0, record.length);
+            out.write(title, 0, title.length);
+
+            byte[] details = new byte[13];
+            int tvShowId = random.nextInt(0xffff);
+            int year = 1990 + random.nextInt(30);
+            details[5] = (byte) (tvShowId >> 8);
+            details[6] = (byte) tvShowId;
+            details[8] = (byte) random.nextInt(20);
+            details[9] = (byte) (year >> 8);
+            details[10] = (byte) year;
+            details[11] = (byte) random.nextInt(10);
+            details[12] = (byte) tvShowName.length;
+            out.write(details, 0, details.length);
+            out.write(tvShowName, 0, tvShowName.length);
+
+            // Trailing fields not parsed by the app, then record delimiter
+            byte[] filler = new byte[24 + random.nextInt(48)];
+            out.write(filler, 0, filler.length);
+            out.write(STOVER, 0, STOVER.length);
+
+            start += duration;
+        }
+
+        return out.toByteArray();
+    }
+
+
+    /**
+     * Build DVB-STP datagrams
+     * @param  files    Files of the carousel
+     * @param  fileType File type for all files
+     * @return          Datagrams for one full carousel cycle
+     */
+    public static ArrayList<byte[]> buildDatagrams(ArrayList<byte[]> files, int fileType) {
+        ArrayList<byte[]> res = new ArrayList<>();
+        for (int fileId=0; fileId<files.size(); fileId++) {
+            byte[] file = files.get(fileId);
+            int numOfChunks = Math.max(1, (file.length + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+            int lastChunk = numOfChunks - 1;
+            for (int i=0; i<numOfChunks; i++) {
+                int offset = i * SEGMENT_SIZE;
+                int length = Math.min(SEGMENT_SIZE, file.length - offset);
+                byte[] datagram = new byte[12 + length];
+                datagram[4] = (byte) fileType;
+                datagram[5] = (byte) (fileId >> 8);
+                datagram[6] = (byte) fileId;
+                datagram[7] = 1;
+                datagram[8] = (byte) (i >> 4);
+                datagram[9] = (byte) (((i & 0x0f) << 4) | ((lastChunk >> 8) & 0x0f));
+                datagram[10] = (byte) lastChunk;
+                System.arraycopy(file, offset, datagram, 12, length);
+                res.add(datagram);
+            }
+        }
+        return res;
+    }
+
+
+    /**
+     * Build service discovery files
+     * @return Service list, package discovery and BCG discovery documents
+     */
+    public String[] buildServiceDiscoveryFiles() {
+        StringBuilder services = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+                "<ServiceDiscovery xmlns=\"urn:dvb:ipisdns:2006\"><ServiceList>");
+        StringBuilder packages = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+                "<ServiceDiscovery xmlns=\"urn:dvb:ipisdns:2006\"><PackageDiscovery>" +
+                "<Package Id=\"1\"><PackageName Language=\"ENG\">" + TV_PACKAGE + "</PackageName>");
+        for (int i=0; i<numOfChannels; i++) {
+            int serviceName = FIRST_SERVICE_NAME + i;
+            services.append("<SingleService><ServiceLocation><IPMulticastAddress Address=\"239.0.")
+                    .append(i / 250).append('.').append(i % 250 + 1)
+                    .append("\" Port=\"8208\"/></ServiceLocation>")
+                    .append("<TextualIdentifier ServiceName=\"").append(serviceName)
+                    .append("\" logoURI=\"MAY_1/imSer/").append(serviceName).append(".jpg\"/>")
+                    .append("<DVBTriplet OrigNetId=\"1\" ServiceId=\"").append(serviceName)
+                    .append("\" TSId=\"1\"/><MaxBitrate>10000</MaxBitrate>")
+                    .append("<SI ServiceType=\"1\"><Name Language=\"ENG\">")
+                    .append(randomTitle()).append("</Name><ShortName Language=\"ENG\">CH")
+                    .append(i).append("</ShortName><Description Language=\"ENG\">")
+                    .append(randomTitle()).append(' ').append(randomTitle())
+                    .append("</Description><Genre href=\"urn:miviewtv:cs:GenreCS:2007:0.0\"/>")
+                    .append("</SI>");
+            if (i % 10 == 9) {
+                services.append("<ReplacementService><TextualIdentifier ServiceName=\"")
+                        .append(serviceName - 1).append("\"/></ReplacementService>");
+            }
+            services.append("</SingleService>");
+
+            packages.append("<Service><TextualID ServiceName=\"").append(serviceName)
+                    .append("\"/><DVBTriplet OrigNetId=\"1\" ServiceId=\"").append(serviceName)
+                    .append("\" TSId=\"1\"/><LogicalChannelNumber>").append(i + 1)
+                    .append("</LogicalChannelNumber></Service>");
+        }
+        services.append("</ServiceList></ServiceDiscovery>");
+        packages.append("</Package></PackageDiscovery></ServiceDiscovery>");
+
+        StringBuilder bcg = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+                "<ServiceDiscovery xmlns=\"urn:dvb:ipisdns:2006\"><BCGDiscovery>");
+        for (int day=0; day<numOfDays; day++) {
+            bcg.append("<BCG Id=\"p.").append(day).append("\"><TransportMode><DVBBINSTP ")
+                    .append("Address=\"239.0.2.").append(130 + day)
+                    .append("\" Port=\"3937\" Source=\"10.64.0.1\"/></TransportMode></BCG>");
+        }
+        bcg.append("</BCGDiscovery></ServiceDiscovery>");
+
+        // Carousel files are padded after the closing tag
+        return new String[] {
+            services.toString() + "\n\n",
+            packages.toString() + "\n\n",
+            bcg.toString() + "\n\n"
+        };
+    }
+
+
+    /**
+     * Random title
+     * @return Title made of random words
+     */
+    private String randomTitle() {
+        int numOfWords = 2 + random.nextInt(4);
+        StringBuilder sb = new StringBuilder();
+        for (int i=0; i<numOfWords; i++) {
+            if (i > 0) sb.append(' ');
+            sb.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return sb.toString();
+    }
+
+
+    /**
+     * Encode EPG string
+     * @param  input Input string
+     * @return       Obfuscated bytes as found in EPG files
+     */
+    private static byte[] encodeEpgString(String input) {
+        byte[] res = input.getBytes(StandardCharsets.UTF_8);
+        for (int i=0; i<res.length; i++) {
+            res[i] ^= 0x15;
+        }
+        return res;
+    }
+
+
+    /**
+     * Write big endian integer
+     * @param b      Target buffer
+     * @param offset Offset inside buffer
+     * @param value  Value
+     */
+    private static void writeInt(byte[] b, int offset, int value) {
+        b[offset] = (byte) (value >> 24);
+        b[offset+1] = (byte) (value >> 16);
+        b[offset+2] = (byte) (value >> 8);
+        b[offset+3] = (byte) value;
+    }
+
+}
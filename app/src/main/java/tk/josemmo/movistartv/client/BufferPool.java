@@ -0,0 +1,50 @@
+package tk.josemmo.movistartv.client;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Pool of direct byte buffers shared between multicast receivers, so a new download does not
+ * have to allocate (and later garbage collect) native memory for every datagram.
+ */
+class BufferPool {
+    private final int bufferSize;
+    private final int maxPooledBuffers;
+    private final ArrayDeque<ByteBuffer> buffers = new ArrayDeque<>();
+
+    /**
+     * BufferPool constructor
+     * @param bufferSize       Size of each buffer in bytes
+     * @param maxPooledBuffers Maximum number of idle buffers to keep
+     */
+    BufferPool(int bufferSize, int maxPooledBuffers) {
+        this.bufferSize = bufferSize;
+        this.maxPooledBuffers = maxPooledBuffers;
+    }
+
+
+    /**
+     * Acquire buffer
+     * @return Cleared direct buffer
+     */
+    synchronized ByteBuffer acquire() {
+        ByteBuffer buffer = buffers.pollFirst();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(bufferSize);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+
+    /**
+     * Release buffer back to the pool
+     * @param buffer Buffer previously returned by {@link #acquire()}
+     */
+    synchronized void release(ByteBuffer buffer) {
+        if (buffers.size() < maxPooledBuffers) {
+            buffers.addFirst(buffer);
+        }
+    }
+
+}
@@ -0,0 +1,152 @@
+package tk.josemmo.movistartv.client;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.text.TextUtils;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * On-disk cache of raw carousel files from previous syncs.
+ * <p>
+ * For every entrypoint it persists the (fileType, fileId, version) triples of the last
+ * successful download, together with the raw contents of those files. This allows
+ * {@link UdpClient} to skip files whose version has not changed since then.
+ */
+public class CarouselCache {
+    private static final String LOGTAG = "CarouselCache";
+    private static final String PREFS_NAME = "CarouselCache";
+
+    private final SharedPreferences prefs;
+    private final File baseDir;
+
+    /**
+     * CarouselCache constructor
+     * @param ctx Context
+     */
+    public CarouselCache(Context ctx) {
+        Context appCtx = ctx.getApplicationContext();
+        prefs = appCtx.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        baseDir = new File(appCtx.getCacheDir(), "carousel");
+    }
+
+
+    /**
+     * Get entrypoint directory
+     * @param  entrypoint Entrypoint formatted in host:port
+     * @return            Directory for raw files
+     */
+    private File getEntrypointDir(String entrypoint) {
+        return new File(baseDir, entrypoint.replace(':', '_'));
+    }
+
+
+    /**
+     * Get raw file path
+     * @param  entrypoint Entrypoint formatted in host:port
+     * @param  key        File key formatted in type-id
+     * @return            Raw file path
+     */
+    private File getRawFile(String entrypoint, String key) {
+        return new File(getEntrypointDir(entrypoint), key + ".bin");
+    }
+
+
+    /**
+     * Get versions of cached files
+     * @param  entrypoint Entrypoint formatted in host:port
+     * @return            Map of file keys (type-id) to versions, only for files still on disk
+     */
+    public HashMap<String, Integer> getVersions(String entrypoint) {
+        HashMap<String, Integer> res = new HashMap<>();
+        String triples = prefs.getString(entrypoint, "");
+        if (triples.isEmpty()) return res;
+
+        for (String triple : triples.split("\\|")) {
+            String[] parts = triple.split("-");
+            if (parts.length != 3) continue;
+            String key = parts[0] + "-" + parts[1];
+            if (getRawFile(entrypoint, key).isFile()) {
+                res.put(key, Integer.parseInt(parts[2]));
+            }
+        }
+        return res;
+    }
+
+
+    /**
+     * Save raw file
+     * @param entrypoint Entrypoint formatted in host:port
+     * @param file       Complete carousel file
+     */
+    public void putFile(String entrypoint, CarouselFile file) {
+        File dir = getEntrypointDir(entrypoint);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.w(LOGTAG, "Failed to create cache directory " + dir);
+            return;
+        }
+
+        File target = getRawFile(entrypoint, file.getKey());
+        try (FileOutputStream output = new FileOutputStream(target)) {
+            output.write(file.getData(), 0, file.getLength());
+        } catch (IOException e) {
+            Log.w(LOGTAG, "Failed to cache file " + file.getKey());
+            if (!target.delete()) Log.w(LOGTAG, "Failed to delete " + target);
+        }
+    }
+
+
+    /**
+     * Get raw file
+     * @param  entrypoint Entrypoint formatted in host:port
+     * @param  key        File key formatted in type-id
+     * @return            Raw file contents or NULL if not cached
+     */
+    @Nullable
+    public byte[] getFile(String entrypoint, String key) {
+        File source = getRawFile(entrypoint, key);
+        try (RandomAccessFile input = new RandomAccessFile(source, "r")) {
+            byte[] res = new byte[(int) input.length()];
+            input.readFully(res);
+            return res;
+        } catch (IOException e) {
+            Log.w(LOGTAG, "Failed to read cached file " + key);
+            return null;
+        }
+    }
+
+
+    /**
+     * Save versions of the last sync
+     * <p>
+     * Raw files not listed in the new versions are removed from disk.
+     * @param entrypoint Entrypoint formatted in host:port
+     * @param versions   Map of file keys (type-id) to versions
+     */
+    public void putVersions(String entrypoint, Map<String, Integer> versions) {
+        ArrayList<String> triples = new ArrayList<>();
+        for (Map.Entry<String, Integer> entry : versions.entrySet()) {
+            triples.add(entry.getKey() + "-" + entry.getValue());
+        }
+        prefs.edit().putString(entrypoint, TextUtils.join("|", triples)).apply();
+
+        File[] rawFiles = getEntrypointDir(entrypoint).listFiles();
+        if (rawFiles == null) return;
+        for (File rawFile : rawFiles) {
+            String key = rawFile.getName().replace(".bin", "");
+            if (!versions.containsKey(key) && !rawFile.delete()) {
+                Log.w(LOGTAG, "Failed to delete stale file " + rawFile);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,46 @@
+package tk.josemmo.movistartv.client;
+
+import android.util.Log;
+
+/**
+ * Completion policy based on carousel cycle detection.
+ * <p>
+ * The first chunk received marks the start of the cycle. When that very same chunk comes around
+ * again the whole carousel has been seen at least once, so the download ends as soon as every
+ * known file is complete. Chunks lost during the first cycle are repaired in the following one.
+ */
+public class CarouselCyclePolicy implements CompletionPolicy {
+    private static final String LOGTAG = "CarouselCyclePolicy";
+
+    private long firstChunk = -1;
+    private boolean wrapped = false;
+    private int chunksSinceLastGrowth = 0;
+    private int lastTotalNumOfChunks = 0;
+
+    @Override
+    public boolean isFinished(int fileType, int fileId, int chunkIndex, int downloadedChunks,
+                              int totalNumOfChunks) {
+        long chunk = ((long) fileType << 32) | ((long) fileId << 16) | chunkIndex;
+        if (firstChunk < 0) {
+            firstChunk = chunk;
+        } else if (!wrapped && chunk == firstChunk) {
+            wrapped = true;
+            Log.d(LOGTAG, "Carousel wrapped with " + downloadedChunks + " out of " +
+                    totalNumOfChunks + " chunks");
+        }
+
+        // Safety net for carousels where the first chunk never comes back: a full cycle carries
+        // at least one packet per known chunk, so seeing twice as many without discovering any
+        // new file also means the carousel has wrapped
+        if (totalNumOfChunks != lastTotalNumOfChunks) {
+            lastTotalNumOfChunks = totalNumOfChunks;
+            chunksSinceLastGrowth = 0;
+        } else if (!wrapped && ++chunksSinceLastGrowth > 2 * totalNumOfChunks) {
+            wrapped = true;
+            Log.d(LOGTAG, "Assuming carousel has wrapped without seeing first chunk again");
+        }
+
+        return wrapped && downloadedChunks == totalNumOfChunks;
+    }
+
+}
@@ -0,0 +1,232 @@
+package tk.josemmo.movistartv.client;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+/**
+ * A file being reassembled from a DVB-STP carousel.
+ * <p>
+ * Chunks are written straight into a single buffer of <code>numOfChunks * segmentSize</code>
+ * bytes at their final offset, so a finished file can be handed out without further copies.
+ * The segment size is learnt from the first chunk which is not the last one of the file.
+ */
+public class CarouselFile {
+    private static final String LOGTAG = "CarouselFile";
+
+    private final int fileType;
+    private final int fileId;
+    private final int version;
+    private final int numOfChunks;
+    private final BitSet receivedChunks;
+    private int numOfReceivedChunks = 0;
+    private int segmentSize = -1;
+    private byte[] data = null;
+    private byte[] pendingLastChunk = null;
+    private int length = 0;
+
+    /**
+     * CarouselFile constructor
+     * @param fileType    File type (DVB-STP payload ID)
+     * @param fileId      File ID (DVB-STP segment ID)
+     * @param version     File version (DVB-STP segment version)
+     * @param numOfChunks Number of chunks of this file
+     */
+    CarouselFile(int fileType, int fileId, int version, int numOfChunks) {
+        this.fileType = fileType;
+        this.fileId = fileId;
+        this.version = version;
+        this.numOfChunks = numOfChunks;
+        this.receivedChunks = new BitSet(numOfChunks);
+    }
+
+
+    /**
+     * Get file type
+     * @return File type
+     */
+    public int getFileType() {
+        return fileType;
+    }
+
+
+    /**
+     * Get file ID
+     * @return File ID
+     */
+    public int getFileId() {
+        return fileId;
+    }
+
+
+    /**
+     * Get file version
+     * @return File version
+     */
+    public int getVersion() {
+        return version;
+    }
+
+
+    /**
+     * Get file key
+     * @return File key formatted in type-id
+     */
+    public String getKey() {
+        return fileType + "-" + fileId;
+    }
+
+
+    /**
+     * Get number of chunks
+     * @return Number of chunks
+     */
+    public int getNumOfChunks() {
+        return numOfChunks;
+    }
+
+
+    /**
+     * Get number of received chunks
+     * @return Number of received chunks
+     */
+    public int getNumOfReceivedChunks() {
+        return numOfReceivedChunks;
+    }
+
+
+    /**
+     * Has chunk
+     * @param  chunkIndex Chunk index
+     * @return            Whether chunk has already been received
+     */
+    public boolean hasChunk(int chunkIndex) {
+        return receivedChunks.get(chunkIndex);
+    }
+
+
+    /**
+     * Is complete
+     * @return Whether all chunks have been received
+     */
+    public boolean isComplete() {
+        return numOfReceivedChunks == numOfChunks && pendingLastChunk == null;
+    }
+
+
+    /**
+     * Put chunk
+     * <p>
+     * Storing the first regular chunk may discard a pending last chunk which does not fit the
+     * learnt segment size, so callers must track {@link #getNumOfReceivedChunks()} instead of
+     * counting stored chunks themselves.
+     * @param  chunkIndex Chunk index
+     * @param  payload    Chunk payload, from its position up to its limit
+     * @return            Whether chunk was new and has been stored
+     */
+    boolean putChunk(int chunkIndex, ByteBuffer payload) {
+        if (chunkIndex >= numOfChunks || receivedChunks.get(chunkIndex)) return false;
+
+        int payloadSize = payload.remaining();
+        boolean isLastChunk = (chunkIndex == numOfChunks-1);
+        if (isLastChunk && segmentSize < 0 && numOfChunks > 1) {
+            // Cannot know where the previous chunks end yet, keep it aside
+            pendingLastChunk = new byte[payloadSize];
+            payload.get(pendingLastChunk);
+        } else {
+            if (segmentSize < 0) {
+                allocate(payloadSize);
+            } else if (payloadSize > segmentSize && !isLastChunk) {
+                Log.w(LOGTAG, "Ignoring chunk larger than segment size in file " + getKey());
+                return false;
+            }
+            if (!writeChunk(chunkIndex, payload)) return false;
+        }
+
+        receivedChunks.set(chunkIndex);
+        ++numOfReceivedChunks;
+        return true;
+    }
+
+
+    /**
+     * Allocate data buffer
+     * @param segmentSize Segment size in bytes
+     */
+    private void allocate(int segmentSize) {
+        this.segmentSize = segmentSize;
+        data = new byte[numOfChunks * segmentSize];
+
+        // Flush last chunk received before knowing the segment size
+        if (pendingLastChunk != null) {
+            byte[] chunk = pendingLastChunk;
+            pendingLastChunk = null;
+            if (!writeChunk(numOfChunks-1, ByteBuffer.wrap(chunk))) {
+                receivedChunks.clear(numOfChunks-1);
+                --numOfReceivedChunks;
+            }
+        }
+    }
+
+
+    /**
+     * Write chunk to its final offset
+     * @param  chunkIndex Chunk index
+     * @param  payload    Chunk payload
+     * @return            Success
+     */
+    private boolean writeChunk(int chunkIndex, ByteBuffer payload) {
+        int offset = chunkIndex * segmentSize;
+        int payloadSize = payload.remaining();
+        if (offset + payloadSize > data.length) {
+            Log.w(LOGTAG, "Ignoring chunk overflowing file " + getKey());
+            return false;
+        }
+        payload.get(data, offset, payloadSize);
+        if (chunkIndex == numOfChunks-1) {
+            length = offset + payloadSize;
+        }
+        return true;
+    }
+
+
+    /**
+     * Get data
+     * @return Backing buffer, only the first {@link #getLength()} bytes are meaningful
+     */
+    public byte[] getData() {
+        return (data == null) ? new byte[0] : data;
+    }
+
+
+    /**
+     * Get length
+     * @return File length in bytes
+     */
+    public int getLength() {
+        return length;
+    }
+
+
+    /**
+     * Release data
+     * <p>
+     * Frees the backing buffer of a file which has already been consumed. The file is still
+     * reported as complete, so its chunks are not downloaded again.
+     */
+    void releaseData() {
+        data = null;
+        length = 0;
+    }
+
+
+    /**
+     * Get file contents as string
+     * @return File contents
+     */
+    public String getString() {
+        return new String(getData(), 0, length);
+    }
+
+}
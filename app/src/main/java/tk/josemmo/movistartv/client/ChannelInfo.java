@@ -0,0 +1,155 @@
+package tk.josemmo.movistartv.client;
+
+import androidx.annotation.NonNull;
+
+import com.google.android.media.tv.companionlibrary.model.InternalProviderData;
+
+/**
+ * Immutable channel descriptor, from service discovery to the TV provider.
+ */
+public final class ChannelInfo {
+    static final String SERVICE_NAME_KEY = "serviceName";
+    static final String EPG_SERVICE_NAME_KEY = "epgServiceName";
+    static final String ADDRESS_KEY = "mCastIp";
+    static final String PORT_KEY = "mCastPort";
+
+    public final int dial;
+    public final int serviceName;
+    public final int epgServiceName;
+    public final int address;
+    public final int port;
+    public final String name;
+    public final String shortName;
+    public final String description;
+    public final String logoUri;
+    private final String multicastAddress;
+
+    /**
+     * ChannelInfo constructor
+     * @param dial           Dial (logical channel number)
+     * @param serviceName    Service name
+     * @param epgServiceName Service name used for EPG data
+     * @param address        IPv4 multicast address, packed in big-endian order
+     * @param port           Multicast port
+     * @param name           Channel name
+     * @param shortName      Channel short name
+     * @param description    Channel description
+     * @param logoUri        Full logo URI
+     */
+    public ChannelInfo(int dial, int serviceName, int epgServiceName, int address, int port,
+                       String name, String shortName, String description, String logoUri) {
+        this.dial = dial;
+        this.serviceName = serviceName;
+        this.epgServiceName = epgServiceName;
+        this.address = address;
+        this.port = port;
+        this.name = name;
+        this.shortName = shortName;
+        this.description = description;
+        this.logoUri = logoUri;
+        this.multicastAddress = formatAddress(address) + ":" + port;
+    }
+
+
+    /**
+     * Get multicast address
+     * @return Address and port, as in "239.0.0.1:8208"
+     */
+    @NonNull
+    public String getMulticastAddress() {
+        return multicastAddress;
+    }
+
+
+    /**
+     * To internal provider data
+     * @return Internal provider data for the TV provider
+     */
+    @NonNull
+    public InternalProviderData toInternalProviderData() throws InternalProviderData.ParseException {
+        InternalProviderData data = new InternalProviderData();
+        data.setVideoUrl(multicastAddress);
+        data.put(SERVICE_NAME_KEY, serviceName);
+        data.put(EPG_SERVICE_NAME_KEY, epgServiceName);
+        data.put(ADDRESS_KEY, address);
+        data.put(PORT_KEY, port);
+        return data;
+    }
+
+
+    /**
+     * Get EPG service name from internal provider data
+     * @param  data Internal provider data
+     * @return      Service name used for EPG data
+     */
+    public static int getEpgServiceName(InternalProviderData data)
+            throws InternalProviderData.ParseException {
+        return getInt(data, EPG_SERVICE_NAME_KEY);
+    }
+
+
+    /**
+     * Get integer from internal provider data
+     * <p>
+     * InternalProviderData stores every value as a string, so values are always parsed.
+     * @param  data Internal provider data
+     * @param  key  Key
+     * @return      Value
+     */
+    static int getInt(InternalProviderData data, String key)
+            throws InternalProviderData.ParseException {
+        try {
+            return Integer.parseInt(String.valueOf(data.get(key)));
+        } catch (NumberFormatException e) {
+            throw new InternalProviderData.ParseException(e.getMessage());
+        }
+    }
+
+
+    /**
+     * Parse IPv4 address
+     * @param  input Dotted IPv4 address
+     * @return       Address packed in big-endian order
+     * @throws IllegalArgumentException if not a valid IPv4 address
+     */
+    public static int parseAddress(String input) {
+        int res = 0;
+        int octet = 0;
+        int numOfDigits = 0;
+        int numOfOctets = 0;
+        for (int i=0; i<=input.length(); i++) {
+            char c = (i < input.length()) ? input.charAt(i) : '.';
+            if (c == '.') {
+                if (numOfDigits == 0 || octet > 255 || numOfOctets == 4) {
+                    throw new IllegalArgumentException("Invalid IPv4 address " + input);
+                }
+                res = (res << 8) | octet;
+                octet = 0;
+                numOfDigits = 0;
+                numOfOctets++;
+            } else if (c >= '0' && c <= '9' && numOfDigits < 3) {
+                octet = octet*10 + (c - '0');
+                numOfDigits++;
+            } else {
+                throw new IllegalArgumentException("Invalid IPv4 address " + input);
+            }
+        }
+        if (numOfOctets != 4) {
+            throw new IllegalArgumentException("Invalid IPv4 address " + input);
+        }
+        return res;
+    }
+
+
+    /**
+     * Format IPv4 address
+     * @param  address Address packed in big-endian order
+     * @return         Dotted IPv4 address
+     */
+    @NonNull
+    public static String formatAddress(int address) {
+        return ((address >>> 24) & 0xff) + "." + ((address >>> 16) & 0xff) + "." +
+                ((address >>> 8) & 0xff) + "." + (address & 0xff);
+    }
+
+}
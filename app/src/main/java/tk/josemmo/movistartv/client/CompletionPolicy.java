@@ -0,0 +1,21 @@
+package tk.josemmo.movistartv.client;
+
+/**
+ * Decides when a {@link UdpClient} has received enough of a DVB-STP carousel to stop listening.
+ * Implementations are stateful, so every download needs its own instance.
+ */
+public interface CompletionPolicy {
+    /**
+     * Is finished
+     * <p>
+     * Called once for every valid chunk received, after it has been stored.
+     * @param  fileType         File type of the chunk
+     * @param  fileId           File ID of the chunk
+     * @param  chunkIndex       Index of the chunk inside its file
+     * @param  downloadedChunks Number of chunks downloaded so far
+     * @param  totalNumOfChunks Number of chunks of all known files
+     * @return                  Whether the download has finished
+     */
+    boolean isFinished(int fileType, int fileId, int chunkIndex, int downloadedChunks,
+                       int totalNumOfChunks);
+}
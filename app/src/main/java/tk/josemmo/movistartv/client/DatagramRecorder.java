@@ -0,0 +1,73 @@
+package tk.josemmo.movistartv.client;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes raw datagrams of a carousel to a capture file, so they can later be fed back through
+ * {@link DatagramReplayer} without a live multicast feed.
+ * <p>
+ * Capture format (big endian): the {@link #MAGIC} bytes and a format version byte, followed by
+ * one record per datagram made of a 64-bit timestamp in nanoseconds relative to the first
+ * datagram, a 16-bit length and the datagram bytes.
+ */
+public class DatagramRecorder implements Closeable {
+    static final byte[] MAGIC = {'M', 'T', 'V', 'C', 'A', 'P'};
+    static final int FORMAT_VERSION = 1;
+
+    private final DataOutputStream output;
+    private final byte[] scratch = new byte[0xffff];
+    private long firstTimestamp = -1;
+    private int numOfDatagrams = 0;
+
+    /**
+     * DatagramRecorder constructor
+     * @param file Capture file to create
+     */
+    public DatagramRecorder(File file) throws IOException {
+        output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        output.write(MAGIC);
+        output.writeByte(FORMAT_VERSION);
+    }
+
+
+    /**
+     * Record datagram
+     * @param datagram Datagram bytes, from position zero up to the buffer limit
+     */
+    public synchronized void record(ByteBuffer datagram) throws IOException {
+        long now = System.nanoTime();
+        if (firstTimestamp < 0) firstTimestamp = now;
+
+        int length = Math.min(datagram.limit(), scratch.length);
+        ByteBuffer source = datagram.duplicate();
+        source.position(0);
+        source.get(scratch, 0, length);
+
+        output.writeLong(now - firstTimestamp);
+        output.writeShort(length);
+        output.write(scratch, 0, length);
+        numOfDatagrams++;
+    }
+
+
+    /**
+     * Get number of recorded datagrams
+     * @return Number of datagrams
+     */
+    public synchronized int getNumOfDatagrams() {
+        return numOfDatagrams;
+    }
+
+
+    @Override
+    public synchronized void close() throws IOException {
+        output.close();
+    }
+
+}
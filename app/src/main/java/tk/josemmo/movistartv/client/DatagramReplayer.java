@@ -0,0 +1,298 @@
+package tk.josemmo.movistartv.client;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Replays datagrams captured by {@link DatagramRecorder}, either straight into the chunk
+ * parser of a {@link UdpClient} or through a loopback multicast socket.
+ * <p>
+ * Replays can be paced at a fixed packet rate or following the recorded timing, and datagrams
+ * can be dropped following a {@link LossPattern} to reproduce lossy links offline.
+ */
+public class DatagramReplayer {
+    private static final String LOGTAG = "DatagramReplayer";
+
+    /**
+     * Decides which datagrams are lost during a replay
+     */
+    public interface LossPattern {
+        /**
+         * Should drop
+         * @param  index Index of the datagram in the replay, starting at zero
+         * @return       Whether to drop this datagram
+         */
+        boolean shouldDrop(long index);
+    }
+
+    /**
+     * Replay statistics
+     */
+    public static class Stats {
+        public long sentDatagrams = 0;
+        public long droppedDatagrams = 0;
+        public long elapsedNanos = 0;
+        public boolean finished = false;
+
+        @Override
+        public String toString() {
+            return "sent=" + sentDatagrams + " dropped=" + droppedDatagrams +
+                    " elapsedMs=" + (elapsedNanos / 1000000) + " finished=" + finished;
+        }
+    }
+
+    private final ArrayList<byte[]> datagrams = new ArrayList<>();
+    private final ArrayList<Long> timestamps = new ArrayList<>();
+    private LossPattern lossPattern = noLoss();
+    private int packetRate = 0;
+    private double timeScale = 0;
+    private int maxRounds = 10;
+
+    /**
+     * DatagramReplayer constructor
+     * @param file Capture file
+     */
+    public DatagramReplayer(File file) throws IOException {
+        try (DataInputStream input = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            byte[] magic = new byte[DatagramRecorder.MAGIC.length];
+            input.readFully(magic);
+            int version = input.readUnsignedByte();
+            if (!Arrays.equals(magic, DatagramRecorder.MAGIC) ||
+                    version != DatagramRecorder.FORMAT_VERSION) {
+                throw new IOException("Not a supported capture file");
+            }
+
+            while (true) {
+                long timestamp;
+                try {
+                    timestamp = input.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+                byte[] datagram = new byte[input.readUnsignedShort()];
+                input.readFully(datagram);
+                timestamps.add(timestamp);
+                datagrams.add(datagram);
+            }
+        }
+        Log.d(LOGTAG, "Loaded " + datagrams.size() + " datagrams from " + file);
+    }
+
+
+    /**
+     * No loss
+     * @return Loss pattern which never drops datagrams
+     */
+    public static LossPattern noLoss() {
+        return new LossPattern() {
+            @Override
+            public boolean shouldDrop(long index) {
+                return false;
+            }
+        };
+    }
+
+
+    /**
+     * Random loss
+     * @param  probability Probability of dropping each datagram, between 0 and 1
+     * @param  seed        Random seed, so replays are reproducible
+     * @return             Loss pattern
+     */
+    public static LossPattern randomLoss(final double probability, long seed) {
+        final Random random = new Random(seed);
+        return new LossPattern() {
+            @Override
+            public boolean shouldDrop(long index) {
+                return random.nextDouble() < probability;
+            }
+        };
+    }
+
+
+    /**
+     * Burst loss
+     * @param  period      Length of each period in datagrams
+     * @param  burstLength Number of consecutive datagrams dropped at the start of each period
+     * @return             Loss pattern
+     */
+    public static LossPattern burstLoss(final int period, final int burstLength) {
+        return new LossPattern() {
+            @Override
+            public boolean shouldDrop(long index) {
+                return (index % period) < burstLength;
+            }
+        };
+    }
+
+
+    /**
+     * Set loss pattern
+     * @param  lossPattern Loss pattern
+     * @return             This instance
+     */
+    public DatagramReplayer setLossPattern(LossPattern lossPattern) {
+        this.lossPattern = lossPattern;
+        return this;
+    }
+
+
+    /**
+     * Set fixed packet rate
+     * @param  packetRate Datagrams per second or zero to replay as fast as possible
+     * @return            This instance
+     */
+    public DatagramReplayer setPacketRate(int packetRate) {
+        this.packetRate = packetRate;
+        this.timeScale = 0;
+        return this;
+    }
+
+
+    /**
+     * Follow recorded timing
+     * @param  timeScale Speed factor relative to the recording (2 replays twice as fast)
+     * @return           This instance
+     */
+    public DatagramReplayer setTimeScale(double timeScale) {
+        this.timeScale = timeScale;
+        this.packetRate = 0;
+        return this;
+    }
+
+
+    /**
+     * Set maximum number of rounds
+     * <p>
+     * The capture is looped like a carousel until the client finishes or this limit is hit.
+     * @param  maxRounds Maximum number of times the whole capture is replayed
+     * @return           This instance
+     */
+    public DatagramReplayer setMaxRounds(int maxRounds) {
+        this.maxRounds = maxRounds;
+        return this;
+    }
+
+
+    /**
+     * Get number of datagrams
+     * @return Number of datagrams in capture
+     */
+    public int getNumOfDatagrams() {
+        return datagrams.size();
+    }
+
+
+    /**
+     * Replay into client
+     * <p>
+     * Datagrams skip the network stack and go straight into the chunk parser.
+     * @param  client Client which reassembles the carousel
+     * @return        Replay statistics, only finished if the client completed the download
+     */
+    public Stats replayInto(UdpClient client) throws InterruptedException {
+        Stats stats = new Stats();
+        long start = System.nanoTime();
+        long index = 0;
+
+        rounds:
+        for (int round=0; round<maxRounds; round++) {
+            for (int i=0; i<datagrams.size(); i++) {
+                pace(start, round, i, index);
+                if (lossPattern.shouldDrop(index++)) {
+                    stats.droppedDatagrams++;
+                    continue;
+                }
+                stats.sentDatagrams++;
+                if (client.parseChunk(ByteBuffer.wrap(datagrams.get(i)))) {
+                    stats.finished = true;
+                    break rounds;
+                }
+            }
+        }
+
+        stats.elapsedNanos = System.nanoTime() - start;
+        Log.d(LOGTAG, "Replayed into client: " + stats);
+        return stats;
+    }
+
+
+    /**
+     * Replay to multicast group
+     * <p>
+     * Datagrams are sent with loopback enabled and a TTL of zero, so they never leave the host.
+     * @param  target Target formatted in host:port
+     * @param  rounds Number of times the whole capture is replayed
+     * @return        Replay statistics
+     */
+    public Stats replayTo(String target, int rounds) throws IOException, InterruptedException {
+        String[] parts = target.split(":");
+        InetAddress group = InetAddress.getByName(parts[0]);
+        int port = Integer.parseInt(parts[1]);
+
+        Stats stats = new Stats();
+        long start = System.nanoTime();
+        long index = 0;
+        try (MulticastSocket socket = new MulticastSocket()) {
+            socket.setTimeToLive(0);
+            socket.setLoopbackMode(false);
+            for (int round=0; round<rounds; round++) {
+                for (int i=0; i<datagrams.size(); i++) {
+                    pace(start, round, i, index);
+                    if (lossPattern.shouldDrop(index++)) {
+                        stats.droppedDatagrams++;
+                        continue;
+                    }
+                    byte[] datagram = datagrams.get(i);
+                    socket.send(new DatagramPacket(datagram, datagram.length, group, port));
+                    stats.sentDatagrams++;
+                }
+            }
+        }
+
+        stats.elapsedNanos = System.nanoTime() - start;
+        stats.finished = true;
+        Log.d(LOGTAG, "Replayed to " + target + ": " + stats);
+        return stats;
+    }
+
+
+    /**
+     * Wait until next datagram is due
+     * @param start Replay start time in nanoseconds
+     * @param round Current round
+     * @param i     Index of the datagram inside the capture
+     * @param index Index of the datagram inside the replay
+     */
+    private void pace(long start, int round, int i, long index) throws InterruptedException {
+        long due;
+        if (packetRate > 0) {
+            due = start + index * 1000000000L / packetRate;
+        } else if (timeScale > 0 && !timestamps.isEmpty()) {
+            long roundLength = timestamps.get(timestamps.size()-1) + 1;
+            due = start + (long) ((round * roundLength + timestamps.get(i)) / timeScale);
+        } else {
+            return;
+        }
+
+        long delay = due - System.nanoTime();
+        if (delay > 0) {
+            Thread.sleep(delay / 1000000, (int) (delay % 1000000));
+        }
+    }
+
+}
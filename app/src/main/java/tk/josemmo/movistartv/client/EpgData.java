@@ -0,0 +1,16 @@
+package tk.josemmo.movistartv.client;
+
+import androidx.annotation.Nullable;
+
+/**
+ * EPG of all channels, indexed by EPG service name
+ */
+public interface EpgData {
+    /**
+     * Get programs
+     * @param  epgServiceName EPG service name
+     * @return                Programs of that channel or NULL if not found
+     */
+    @Nullable
+    EpgPrograms getPrograms(int epgServiceName);
+}
@@ -0,0 +1,672 @@
+package tk.josemmo.movistartv.client;
+
+import android.content.Context;
+import android.util.Log;
+import android.util.SparseArray;
+
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Persistent EPG, memory-mapped from disk.
+ * <p>
+ * Every channel is stored as a file of fixed-size records sorted by start time, plus a pool
+ * file with its strings. Records are grouped in segments, one for every EPG file they came
+ * from, identified by entrypoint and service version. When a later sync finds an EPG file
+ * whose service version has not changed, its programs are not decoded again and the segment
+ * is kept from the previous file.
+ * <p>
+ * Channels are served straight from the mapped files, so the EPG does not need to be kept on
+ * the heap between syncs.
+ */
+public class EpgDiskCache implements EpgData {
+    private static final String LOGTAG = "EpgDiskCache";
+    private static final int MAGIC = 0x4d545645;
+    private static final int FORMAT_VERSION = 1;
+    private static final int RECORD_SIZE = 32;
+    private static final String RECORDS_EXTENSION = ".rec";
+    private static final String POOL_EXTENSION = ".str";
+
+    private final File dir;
+    private volatile SparseArray<MappedChannel> channels;
+    private final SparseArray<ArrayList<Segment>> pendingSegments = new SparseArray<>();
+    private final HashSet<String> reusedSegments = new HashSet<>();
+
+    /**
+     * EpgDiskCache constructor
+     * @param ctx Context
+     */
+    public EpgDiskCache(Context ctx) {
+        dir = new File(ctx.getApplicationContext().getCacheDir(), "epg");
+        channels = loadChannels();
+    }
+
+
+    @Override
+    @Nullable
+    public EpgPrograms getPrograms(int epgServiceName) {
+        return channels.get(epgServiceName);
+    }
+
+
+    /**
+     * Get number of cached channels
+     * @return Number of channels
+     */
+    public int getNumOfChannels() {
+        return channels.size();
+    }
+
+
+    /**
+     * Create visitor for an EPG file
+     * @param  entrypoint Entrypoint where the file comes from
+     * @return            File visitor, to be passed to {@link #putFile(FileVisitor)} after decoding
+     */
+    public FileVisitor newFileVisitor(String entrypoint) {
+        return new FileVisitor(entrypoint);
+    }
+
+
+    /**
+     * Put decoded EPG file
+     * <p>
+     * Can be called from any thread.
+     * @param visitor Visitor which has decoded the file
+     */
+    public void putFile(FileVisitor visitor) {
+        if (visitor.epgServiceName < 0) return;
+        synchronized (pendingSegments) {
+            if (visitor.isReused) {
+                reusedSegments.add(getSegmentKey(visitor.epgServiceName, visitor.entrypoint,
+                        visitor.serviceVersion));
+                return;
+            }
+            EpgStore.Partition programs = visitor.programs.build()
+                    .getPartition(visitor.epgServiceName);
+            if (programs == null) return;
+            ArrayList<Segment> segments = pendingSegments.get(visitor.epgServiceName);
+            if (segments == null) {
+                segments = new ArrayList<>();
+                pendingSegments.put(visitor.epgServiceName, segments);
+            }
+            segments.add(new Segment(visitor.entrypoint, visitor.serviceVersion, programs, null));
+        }
+    }
+
+
+    /**
+     * Commit pending files to disk
+     * <p>
+     * Segments from entrypoints outside the horizon are dropped. Segments from entrypoints which
+     * have been fully downloaded are dropped as well unless they were found again unchanged.
+     * Entrypoints which failed to download keep their previous segments.
+     * @param horizon  Entrypoints in the current EPG horizon
+     * @param complete Entrypoints which have been fully downloaded and decoded
+     */
+    public void commit(List<String> horizon, Collection<String> complete) {
+        synchronized (pendingSegments) {
+            HashSet<Integer> epgServiceNames = new HashSet<>();
+            for (int i=0; i<channels.size(); i++) epgServiceNames.add(channels.keyAt(i));
+            for (int i=0; i<pendingSegments.size(); i++) epgServiceNames.add(pendingSegments.keyAt(i));
+
+            int numOfWrites = 0;
+            for (int epgServiceName : epgServiceNames) {
+                ArrayList<Segment> segments = new ArrayList<>();
+                boolean isDirty = false;
+
+                // Keep previous segments which are still valid
+                MappedChannel channel = channels.get(epgServiceName);
+                if (channel != null) {
+                    for (int i=0; i<channel.segmentEntrypoints.length; i++) {
+                        String entrypoint = channel.segmentEntrypoints[i];
+                        int serviceVersion = channel.segmentVersions[i];
+                        String key = getSegmentKey(epgServiceName, entrypoint, serviceVersion);
+                        if (!horizon.contains(entrypoint) ||
+                                (complete.contains(entrypoint) && !reusedSegments.contains(key))) {
+                            isDirty = true;
+                            continue;
+                        }
+                        segments.add(new Segment(entrypoint, serviceVersion, channel,
+                                channel.getSegmentIndexes(i)));
+                    }
+                }
+
+                // Add new segments
+                ArrayList<Segment> newSegments = pendingSegments.get(epgServiceName);
+                if (newSegments != null) {
+                    segments.addAll(newSegments);
+                    isDirty = true;
+                }
+
+                if (!isDirty) continue;
+                if (segments.isEmpty()) {
+                    deleteChannel(epgServiceName);
+                } else {
+                    try {
+                        writeChannel(epgServiceName, segments);
+                    } catch (IOException e) {
+                        Log.e(LOGTAG, "Failed to write EPG of epgServiceName=" + epgServiceName);
+                        e.printStackTrace();
+                    }
+                }
+                numOfWrites++;
+            }
+
+            pendingSegments.clear();
+            reusedSegments.clear();
+            channels = loadChannels();
+            Log.d(LOGTAG, "Committed EPG cache, rewrote " + numOfWrites + " out of " +
+                    channels.size() + " channels");
+        }
+    }
+
+
+    /**
+     * Get segment key
+     * @param  epgServiceName EPG service name
+     * @param  entrypoint     Entrypoint
+     * @param  serviceVersion Service version
+     * @return                Segment key
+     */
+    private static String getSegmentKey(int epgServiceName, String entrypoint, int serviceVersion) {
+        return epgServiceName + "@" + entrypoint + "#" + serviceVersion;
+    }
+
+
+    /**
+     * Get records file
+     * @param  epgServiceName EPG service name
+     * @return                Records file
+     */
+    private File getRecordsFile(int epgServiceName) {
+        return new File(dir, epgServiceName + RECORDS_EXTENSION);
+    }
+
+
+    /**
+     * Get pool file
+     * @param  epgServiceName EPG service name
+     * @return                String pool file
+     */
+    private File getPoolFile(int epgServiceName) {
+        return new File(dir, epgServiceName + POOL_EXTENSION);
+    }
+
+
+    /**
+     * Delete channel files
+     * @param epgServiceName EPG service name
+     */
+    private void deleteChannel(int epgServiceName) {
+        File records = getRecordsFile(epgServiceName);
+        File pool = getPoolFile(epgServiceName);
+        if (records.exists() && !records.delete()) Log.w(LOGTAG, "Failed to delete " + records);
+        if (pool.exists() && !pool.delete()) Log.w(LOGTAG, "Failed to delete " + pool);
+    }
+
+
+    /**
+     * Load mapped channels from disk
+     * @return Channels indexed by EPG service name
+     */
+    private SparseArray<MappedChannel> loadChannels() {
+        SparseArray<MappedChannel> res = new SparseArray<>();
+        File[] files = dir.listFiles();
+        if (files == null) return res;
+
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(RECORDS_EXTENSION)) continue;
+            int epgServiceName;
+            try {
+                epgServiceName = Integer.parseInt(name.substring(0, name.length() -
+                        RECORDS_EXTENSION.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            try {
+                res.put(epgServiceName, new MappedChannel(map(file),
+                        map(getPoolFile(epgServiceName))));
+            } catch (Exception e) {
+                Log.w(LOGTAG, "Invalid EPG cache for epgServiceName=" + epgServiceName);
+                deleteChannel(epgServiceName);
+            }
+        }
+        return res;
+    }
+
+
+    /**
+     * Map file into memory
+     * @param  file File
+     * @return      Read-only mapped buffer
+     */
+    private static ByteBuffer map(File file) throws IOException {
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            FileChannel channel = input.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+
+    /**
+     * Write channel files
+     * @param epgServiceName EPG service name
+     * @param segments       Segments of the channel
+     */
+    private void writeChannel(int epgServiceName, ArrayList<Segment> segments) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Failed to create " + dir);
+        }
+        if (segments.size() > 0xff) {
+            throw new IOException("Too many segments");
+        }
+
+        // Sort records of all segments by start time
+        int numOfRecords = 0;
+        for (Segment segment : segments) numOfRecords += segment.size();
+        long[] order = new long[numOfRecords];
+        int n = 0;
+        for (int s=0; s<segments.size(); s++) {
+            Segment segment = segments.get(s);
+            for (int j=0; j<segment.size(); j++) {
+                order[n++] = ((long) segment.programs.getStart(segment.getIndex(j)) << 32) |
+                        ((long) s << 24) | j;
+            }
+        }
+        Arrays.sort(order);
+
+        // Build header
+        int generation = (int) System.nanoTime();
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        header.write(segments.size());
+        for (Segment segment : segments) {
+            byte[] entrypoint = segment.entrypoint.getBytes(StandardCharsets.US_ASCII);
+            header.write(segment.serviceVersion);
+            header.write(entrypoint.length);
+            header.write(entrypoint, 0, entrypoint.length);
+        }
+
+        // Build records and string pool
+        StringPool pool = new StringPool(generation);
+        ByteBuffer records = ByteBuffer.allocate(20 + header.size() + numOfRecords * RECORD_SIZE);
+        records.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(generation);
+        int poolLengthPosition = records.position();
+        records.putInt(0);
+        records.put(header.toByteArray());
+        records.putInt(numOfRecords);
+        for (long packed : order) {
+            Segment segment = segments.get((int) (packed >> 24) & 0xff);
+            int i = segment.getIndex((int) (packed & 0xffffff));
+            EpgPrograms programs = segment.programs;
+            records.putInt(programs.getPId(i))
+                    .putInt(programs.getStart(i))
+                    .putInt(programs.getEnd(i))
+                    .putShort((short) programs.getYear(i))
+                    .putShort((short) programs.getTvShowId(i))
+                    .put((byte) programs.getGenre(i))
+                    .put((byte) programs.getAgeRating(i))
+                    .put((byte) programs.getSeason(i))
+                    .put((byte) programs.getEpisode(i))
+                    .put((byte) ((packed >> 24) & 0xff))
+                    .put(new byte[3])
+                    .putInt(pool.add(programs.getTitle(i)))
+                    .putInt(pool.add(programs.getTvShowName(i)));
+        }
+        records.putInt(poolLengthPosition, pool.size());
+
+        // Replace previous files, records last so they never point to a missing pool
+        File recordsFile = getRecordsFile(epgServiceName);
+        File poolFile = getPoolFile(epgServiceName);
+        File recordsTmp = new File(dir, recordsFile.getName() + ".tmp");
+        File poolTmp = new File(dir, poolFile.getName() + ".tmp");
+        try {
+            writeFile(poolTmp, pool.toByteArray(), pool.size());
+            writeFile(recordsTmp, records.array(), records.position());
+            if (!poolTmp.renameTo(poolFile) || !recordsTmp.renameTo(recordsFile)) {
+                throw new IOException("Failed to replace EPG cache files");
+            }
+        } finally {
+            if (poolTmp.exists() && !poolTmp.delete()) Log.w(LOGTAG, "Failed to delete " + poolTmp);
+            if (recordsTmp.exists() && !recordsTmp.delete()) Log.w(LOGTAG, "Failed to delete " + recordsTmp);
+        }
+    }
+
+
+    /**
+     * Write file
+     * @param file   Target file
+     * @param data   Data
+     * @param length Data length
+     */
+    private static void writeFile(File file, byte[] data, int length) throws IOException {
+        try (FileOutputStream output = new FileOutputStream(file)) {
+            output.write(data, 0, length);
+            output.getFD().sync();
+        }
+    }
+
+
+    /**
+     * Decodes a single EPG file, skipping its programs if already cached
+     */
+    public class FileVisitor implements EpgVisitor {
+        private final String entrypoint;
+        private final EpgStore.Builder programs = new EpgStore.Builder();
+        private int epgServiceName = -1;
+        private int serviceVersion = -1;
+        private boolean isReused = false;
+
+        /**
+         * FileVisitor constructor
+         * @param entrypoint Entrypoint where the file comes from
+         */
+        private FileVisitor(String entrypoint) {
+            this.entrypoint = entrypoint;
+        }
+
+
+        @Override
+        public boolean onFile(int epgServiceName, int serviceVersion, String serviceUrl) {
+            this.epgServiceName = epgServiceName;
+            this.serviceVersion = serviceVersion;
+            MappedChannel channel = channels.get(epgServiceName);
+            if (channel != null && channel.hasSegment(entrypoint, serviceVersion)) {
+                isReused = true;
+                return false;
+            }
+            return programs.onFile(epgServiceName, serviceVersion, serviceUrl);
+        }
+
+
+        @Override
+        public void onProgram(int pId, int start, int end, int genre, int ageRating, String title,
+                              int year, int tvShowId, int season, int episode, String tvShowName) {
+            programs.onProgram(pId, start, end, genre, ageRating, title, year, tvShowId, season,
+                    episode, tvShowName);
+        }
+    }
+
+
+    /**
+     * Programs of a channel coming from a single EPG file
+     */
+    private static class Segment {
+        private final String entrypoint;
+        private final int serviceVersion;
+        private final EpgPrograms programs;
+        private final int[] indexes;
+
+        /**
+         * Segment constructor
+         * @param entrypoint     Entrypoint
+         * @param serviceVersion Service version
+         * @param programs       Source programs
+         * @param indexes        Indexes of this segment inside source or NULL for all programs
+         */
+        private Segment(String entrypoint, int serviceVersion, EpgPrograms programs,
+                        @Nullable int[] indexes) {
+            this.entrypoint = entrypoint;
+            this.serviceVersion = serviceVersion;
+            this.programs = programs;
+            this.indexes = indexes;
+        }
+
+
+        /**
+         * Get number of programs
+         * @return Number of programs
+         */
+        private int size() {
+            return (indexes == null) ? programs.size() : indexes.length;
+        }
+
+
+        /**
+         * Get index inside source
+         * @param  j Program index inside segment
+         * @return   Program index inside source
+         */
+        private int getIndex(int j) {
+            return (indexes == null) ? j : indexes[j];
+        }
+    }
+
+
+    /**
+     * Deduplicated strings, each one stored as its UTF-8 length followed by its bytes
+     */
+    private static class StringPool extends ByteArrayOutputStream {
+        private final HashMap<String, Integer> offsets = new HashMap<>();
+
+        /**
+         * StringPool constructor
+         * @param generation Generation shared with the records file
+         */
+        private StringPool(int generation) {
+            write(generation >> 24);
+            write(generation >> 16);
+            write(generation >> 8);
+            write(generation);
+        }
+
+
+        /**
+         * Add string
+         * @param  value String
+         * @return       Offset inside pool
+         */
+        private int add(String value) {
+            Integer offset = offsets.get(value);
+            if (offset == null) {
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                int length = Math.min(bytes.length, 0xffff);
+                offset = size();
+                write(length >> 8);
+                write(length);
+                write(bytes, 0, length);
+                offsets.put(value, offset);
+            }
+            return offset;
+        }
+    }
+
+
+    /**
+     * Programs of a channel read from mapped files
+     */
+    private static class MappedChannel implements EpgPrograms {
+        private final ByteBuffer records;
+        private final ByteBuffer pool;
+        private final String[] segmentEntrypoints;
+        private final int[] segmentVersions;
+        private final int recordsOffset;
+        private final int size;
+        private int[] maxEnd = null;
+
+        /**
+         * MappedChannel constructor
+         * @param records Mapped records file
+         * @param pool    Mapped pool file
+         */
+        private MappedChannel(ByteBuffer records, ByteBuffer pool) throws IOException {
+            this.records = records;
+            this.pool = pool;
+            if (records.getInt() != MAGIC || records.getInt() != FORMAT_VERSION) {
+                throw new IOException("Unknown format");
+            }
+            int generation = records.getInt();
+            int poolLength = records.getInt();
+            if (pool.limit() != poolLength || pool.getInt(0) != generation) {
+                throw new IOException("Records and pool do not match");
+            }
+
+            int numOfSegments = records.get() & 0xff;
+            segmentEntrypoints = new String[numOfSegments];
+            segmentVersions = new int[numOfSegments];
+            for (int i=0; i<numOfSegments; i++) {
+                segmentVersions[i] = records.get() & 0xff;
+                byte[] entrypoint = new byte[records.get() & 0xff];
+                records.get(entrypoint);
+                segmentEntrypoints[i] = new String(entrypoint, StandardCharsets.US_ASCII);
+            }
+
+            size = records.getInt();
+            recordsOffset = records.position();
+            if (records.limit() != recordsOffset + size * RECORD_SIZE) {
+                throw new IOException("Truncated records");
+            }
+        }
+
+
+        /**
+         * Has segment
+         * @param  entrypoint     Entrypoint
+         * @param  serviceVersion Service version
+         * @return                Whether channel has a segment for that file
+         */
+        private boolean hasSegment(String entrypoint, int serviceVersion) {
+            for (int i=0; i<segmentEntrypoints.length; i++) {
+                if (segmentVersions[i] == serviceVersion && segmentEntrypoints[i].equals(entrypoint)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+
+        /**
+         * Get segment indexes
+         * @param  segment Segment index
+         * @return         Indexes of the programs of that segment
+         */
+        private int[] getSegmentIndexes(int segment) {
+            int[] res = new int[size];
+            int n = 0;
+            for (int i=0; i<size; i++) {
+                if ((records.get(recordsOffset + i * RECORD_SIZE + 20) & 0xff) == segment) {
+                    res[n++] = i;
+                }
+            }
+            return Arrays.copyOf(res, n);
+        }
+
+
+        /**
+         * Read string from pool
+         * @param  offset Offset inside pool
+         * @return        String
+         */
+        private String readString(int offset) {
+            int length = pool.getShort(offset) & 0xffff;
+            byte[] bytes = new byte[length];
+            for (int i=0; i<length; i++) {
+                bytes[i] = pool.get(offset + 2 + i);
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+
+        @Override
+        public int getPId(int i) {
+            return records.getInt(recordsOffset + i * RECORD_SIZE);
+        }
+
+
+        @Override
+        public int getStart(int i) {
+            return records.getInt(recordsOffset + i * RECORD_SIZE + 4);
+        }
+
+
+        @Override
+        public int getEnd(int i) {
+            return records.getInt(recordsOffset + i * RECORD_SIZE + 8);
+        }
+
+
+        @Override
+        public int getYear(int i) {
+            return records.getShort(recordsOffset + i * RECORD_SIZE + 12) & 0xffff;
+        }
+
+
+        @Override
+        public int getTvShowId(int i) {
+            return records.getShort(recordsOffset + i * RECORD_SIZE + 14) & 0xffff;
+        }
+
+
+        @Override
+        public int getGenre(int i) {
+            return records.get(recordsOffset + i * RECORD_SIZE + 16) & 0xff;
+        }
+
+
+        @Override
+        public int getAgeRating(int i) {
+            return records.get(recordsOffset + i * RECORD_SIZE + 17) & 0xff;
+        }
+
+
+        @Override
+        public int getSeason(int i) {
+            return records.get(recordsOffset + i * RECORD_SIZE + 18) & 0xff;
+        }
+
+
+        @Override
+        public int getEpisode(int i) {
+            return records.get(recordsOffset + i * RECORD_SIZE + 19) & 0xff;
+        }
+
+
+        @Override
+        public String getTitle(int i) {
+            return readString(records.getInt(recordsOffset + i * RECORD_SIZE + 24));
+        }
+
+
+        @Override
+        public String getTvShowName(int i) {
+            return readString(records.getInt(recordsOffset + i * RECORD_SIZE + 28));
+        }
+
+
+        @Override
+        public synchronized int getMaxEnd(int i) {
+            // Built on first use, as most channels are never queried by time
+            if (maxEnd == null) {
+                maxEnd = new int[size];
+                int value = Integer.MIN_VALUE;
+                for (int j=0; j<size; j++) {
+                    value = Math.max(value, getEnd(j));
+                    maxEnd[j] = value;
+                }
+            }
+            return maxEnd[i];
+        }
+    }
+
+}
@@ -1,157 +1,421 @@
 package tk.josemmo.movistartv.client;
 
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 import android.util.Log;
 
-import org.json.JSONArray;
-import org.json.JSONObject;
-
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.TreeMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
-public class EpgDownloader extends Thread {
+/**
+ * Downloads and parses the EPG carousel of a single entrypoint.
+ * <p>
+ * Receiving is left to the caller, either through {@link #receive()} or by attaching this
+ * instance to a {@link MulticastListener}. Every file is parsed on a shared pool as soon as it
+ * is complete, and its programs are merged into a builder shared by all entrypoints.
+ */
+public class EpgDownloader implements MulticastListener.OnDownloadFinishedListener {
+    private static final boolean DEBUG_DUMP_FILES = false;
+    private static final int MAX_EPG_STRING_LENGTH = 0xff;
+    private static final byte[] DELIMITER = "default|STOVER".getBytes(StandardCharsets.US_ASCII);
+    private static final int[] DELIMITER_SKIP = new int[256];
+    static {
+        Arrays.fill(DELIMITER_SKIP, DELIMITER.length);
+        for (int i=0; i<DELIMITER.length-1; i++) {
+            DELIMITER_SKIP[DELIMITER[i] & 0xff] = DELIMITER.length - 1 - i;
+        }
+    }
     private static int instanceCount;
 
     private String LOGTAG;
     private final String entrypoint;
-    private ArrayList<JSONObject> epgFiles;
+    private final CarouselCache cache;
+    private final EpgDiskCache epgCache;
+    private final UdpClient socket;
+    private final ExecutorService parsePool;
+    private final EpgStore.Builder programs;
+    private final ArrayList<Future<?>> pendingTasks = new ArrayList<>();
+    private final HashMap<String, Integer> versions = new HashMap<>();
+    private final CountDownLatch receiveFinished = new CountDownLatch(1);
+    private DatagramReplayer replayer = null;
+    private volatile boolean receivedAllFiles = false;
+    private volatile boolean parsedAllFiles = true;
 
     /**
      * EpgDownloader constructor
      * @param entrypoint EPG entrypoint address
+     * @param cache      Cache of raw files from previous syncs or NULL to download everything
+     * @param epgCache   Cache which receives the programs or NULL to use the builder instead
+     * @param parsePool  Pool where files are parsed
+     * @param programs   Builder which receives the programs, shared with other instances
      */
-    public EpgDownloader(String entrypoint) {
+    public EpgDownloader(String entrypoint, @Nullable CarouselCache cache,
+                         @Nullable EpgDiskCache epgCache, ExecutorService parsePool,
+                         EpgStore.Builder programs) {
         this.entrypoint = entrypoint;
+        this.cache = cache;
+        this.epgCache = epgCache;
+        this.parsePool = parsePool;
+        this.programs = programs;
         LOGTAG = "EpgWorker#" + instanceCount;
         instanceCount++;
+
+        socket = new UdpClient(entrypoint);
+        if (cache != null) {
+            socket.setKnownVersions(cache.getVersions(entrypoint));
+        }
+        socket.setOnFileCompleteListener(new UdpClient.OnFileCompleteListener() {
+            @Override
+            public void onFileComplete(final CarouselFile file) {
+                submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        parseRawFile(file.getData(), file.getLength(), file.getKey(),
+                                file.getVersion(), file);
+                        file.releaseData();
+                    }
+                });
+            }
+        });
     }
 
 
-    @Override
-    public void run() {
+    /**
+     * Attach to shared listener
+     * <p>
+     * Must be called before the listener starts listening.
+     * @param listener Listener which will receive the carousel of this instance
+     */
+    public void attachTo(MulticastListener listener) {
+        listener.add(socket, this);
+    }
+
+
+    /**
+     * Replay carousel from capture
+     * <p>
+     * Must be called before receiving.
+     * @param replayer Replayer used instead of the network
+     */
+    public void replayFrom(DatagramReplayer replayer) {
+        this.replayer = replayer;
+    }
+
+
+    /**
+     * Receive carousel from the calling thread
+     */
+    public void receive() {
+        boolean success = false;
         try {
-            // Download data from socket
-            UdpClient socket = new UdpClient(entrypoint);
-            TreeMap<String,byte[]> rawFiles = socket.downloadRaw();
-
-            // Parse EPG files
-            epgFiles = new ArrayList<>();
-            for (byte[] data : rawFiles.values()) {
-                JSONObject file = parseEpgFile(data);
-                if (file != null) {
-                    epgFiles.add(file);
-                }
+            if (replayer == null) {
+                socket.downloadRaw();
+            } else {
+                socket.downloadRaw(replayer);
             }
-
-            Log.d(LOGTAG, "Finished work!");
+            success = true;
         } catch (Exception e) {
-            Log.e(LOGTAG, "Exception raised inside EPG Downloader thread");
+            Log.e(LOGTAG, "Exception raised while receiving EPG files");
             e.printStackTrace();
+        } finally {
+            onDownloadFinished(socket, success);
         }
     }
 
 
     /**
-     * Get EPG files
-     * @return EPG files
+     * Get entrypoint
+     * @return EPG entrypoint address
      */
-    public ArrayList<JSONObject> getEpgFiles() {
-        return epgFiles;
+    public String getEntrypoint() {
+        return entrypoint;
     }
 
 
     /**
-     * Parse EPG file
-     * @param b Data
+     * Is complete
+     * <p>
+     * Only meaningful after {@link #awaitCompletion()}.
+     * @return Whether the whole carousel was received and parsed
+     */
+    public boolean isComplete() {
+        return receivedAllFiles && parsedAllFiles;
+    }
+
+
+    @Override
+    public void onDownloadFinished(UdpClient client, boolean success) {
+        receivedAllFiles = success;
+        receiveFinished.countDown();
+    }
+
+
+    /**
+     * Wait until all files have been received and parsed
+     * <p>
+     * Files which have not changed since the previous sync are parsed from the cache, and the
+     * cache is only updated if the whole carousel was received and parsed.
+     */
+    public void awaitCompletion() throws Exception {
+        receiveFinished.await();
+        awaitPendingTasks();
+
+        // Parse unchanged files from previous syncs
+        if (cache != null && receivedAllFiles) {
+            for (final Map.Entry<String, Integer> entry : socket.getUnchangedFiles().entrySet()) {
+                submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        byte[] data = cache.getFile(entrypoint, entry.getKey());
+                        if (data != null) {
+                            parseRawFile(data, data.length, entry.getKey(), entry.getValue(), null);
+                        }
+                    }
+                });
+            }
+            awaitPendingTasks();
+            if (parsedAllFiles) {
+                cache.putVersions(entrypoint, versions);
+            }
+        }
+
+        Log.d(LOGTAG, "Finished work!");
+    }
+
+
+    /**
+     * Submit task to parse pool
+     * @param task Task
+     */
+    private void submit(Runnable task) {
+        Future<?> future = parsePool.submit(task);
+        synchronized (pendingTasks) {
+            pendingTasks.add(future);
+        }
+    }
+
+
+    /**
+     * Wait for pending tasks
+     */
+    private void awaitPendingTasks() throws Exception {
+        while (true) {
+            Future<?> future;
+            synchronized (pendingTasks) {
+                if (pendingTasks.isEmpty()) return;
+                future = pendingTasks.remove(pendingTasks.size() - 1);
+            }
+            future.get();
+        }
+    }
+
+
+    /**
+     * Parse raw file and merge its programs
+     * @param data    Data
+     * @param length  Data length
+     * @param key     File key formatted in type-id
+     * @param version File version
+     * @param file    Carousel file to save in cache or NULL if already cached
      */
-    @Nullable
-    private JSONObject parseEpgFile(byte[] b) throws Exception {
-        // TODO: for testing
-        StringBuilder sb = new StringBuilder(b.length * 2);
-        for (byte elem : b) sb.append(String.format("%02x", elem));
+    private void parseRawFile(byte[] data, int length, String key, int version,
+                              @Nullable CarouselFile file) {
+        try {
+            if (epgCache == null) {
+                EpgStore.Builder filePrograms = new EpgStore.Builder();
+                parseEpgFile(data, length, filePrograms);
+                synchronized (programs) {
+                    programs.addAll(filePrograms);
+                }
+            } else {
+                EpgDiskCache.FileVisitor visitor = epgCache.newFileVisitor(entrypoint);
+                parseEpgFile(data, length, visitor);
+                epgCache.putFile(visitor);
+            }
+            if (cache != null) {
+                if (file != null) {
+                    cache.putFile(entrypoint, file);
+                }
+                synchronized (versions) {
+                    versions.put(key, version);
+                }
+            }
+        } catch (Exception e) {
+            parsedAllFiles = false;
+            Log.e(LOGTAG, "Failed to parse EPG file " + key);
+            e.printStackTrace();
+        }
+    }
 
-        byte[] stover = "default|STOVER".getBytes();
 
+    /**
+     * Parse EPG file
+     * @param  b       Data
+     * @param  length  Data length
+     * @param  visitor Visitor which receives the file contents
+     * @return         Whether the file was a valid EPG file
+     */
+    @VisibleForTesting
+    public boolean parseEpgFile(byte[] b, int length, EpgVisitor visitor) {
         // Parse header
+        if (length < 7 || length < 7 + (b[6] & 0xff)) {
+            Log.d(LOGTAG, "Truncated EPG file, ignoring data");
+            return false;
+        }
         int serviceVersion = b[5] & 0xff;
         int urlLength = b[6] & 0xff;
-        String serviceUrl = new String(Arrays.copyOfRange(b, 7, 7+urlLength));
-        if (!serviceUrl.contains(".imagenio.es")) {
+        String serviceUrl = new String(b, 7, urlLength, StandardCharsets.US_ASCII);
+        int dotIndex = serviceUrl.indexOf('.');
+        if (dotIndex < 1 || !serviceUrl.contains(".imagenio.es")) {
             Log.d(LOGTAG, "Invalid service URL for EPG file, ignoring data");
-            return null;
+            return false;
+        }
+        int epgServiceName = Integer.parseInt(serviceUrl.substring(0, dotIndex));
+        if (!visitor.onFile(epgServiceName, serviceVersion, serviceUrl)) {
+            return true;
         }
-        int epgServiceName = Integer.parseInt(serviceUrl.split("\\.", 2)[0]);
 
         // Parse body
-        JSONArray programs = new JSONArray();
+        char[] chars = new char[MAX_EPG_STRING_LENGTH];
         int i = urlLength + 7;
-        while (i < b.length) {
-            try {
-                int pId = (b[i + 3] & 0xff) | ((b[i + 2] & 0xff) << 8) |
-                        ((b[i + 1] & 0xff) << 16) | ((b[i] & 0xff) << 24);
-                int start = (b[i + 7] & 0xff) | ((b[i + 6] & 0xff) << 8) |
-                        ((b[i + 5] & 0xff) << 16) | ((b[i + 4] & 0xff) << 24);
-                int duration = ((b[i + 8] & 0xff) << 8) | (b[i + 9] & 0xff);
-                int genre = b[i + 20] & 0xff;
-                int ageRating = b[i + 24] & 0xff;
-                int titleLength = b[i + 31] & 0xff;
-                String title = parseEpgString(Arrays.copyOfRange(b, i+32, i+32+titleLength));
-
-                int offset = 32 + titleLength;
-                int tvShowId = ((b[i + offset + 5] & 0xff) << 8) | (b[i + offset + 6] & 0xff);
-                int episode = b[i + offset + 8] & 0xff;
-                int year = ((b[i + offset + 9] & 0xff) << 8) | (b[i + offset + 10] & 0xff);
-                int season = b[i + offset + 11] & 0xff;
-                int tvShowNameLength = b[i + offset + 12] & 0xff;
-                String tvShowName = parseEpgString(Arrays.copyOfRange(b, i+offset+13,
-                        i+offset+13+tvShowNameLength));
-
-                if (pId < 0 || start < 0 || duration <= 0 || year > 3000) {
-                    throw new IllegalArgumentException("Corrupted bytes for program data");
-                }
+        while (i + 32 <= length) {
+            int pId = (b[i + 3] & 0xff) | ((b[i + 2] & 0xff) << 8) |
+                    ((b[i + 1] & 0xff) << 16) | ((b[i] & 0xff) << 24);
+            int start = (b[i + 7] & 0xff) | ((b[i + 6] & 0xff) << 8) |
+                    ((b[i + 5] & 0xff) << 16) | ((b[i + 4] & 0xff) << 24);
+            int duration = ((b[i + 8] & 0xff) << 8) | (b[i + 9] & 0xff);
+            int genre = b[i + 20] & 0xff;
+            int ageRating = b[i + 24] & 0xff;
+            int titleLength = b[i + 31] & 0xff;
 
-                JSONObject programData = new JSONObject();
-                programData.put("pId", pId);
-                programData.put("start", start);
-                programData.put("end", start + duration);
-                programData.put("genre", genre);
-                programData.put("ageRating", ageRating);
-                programData.put("title", title);
-                programData.put("year", year);
-                programData.put("tvShowId", tvShowId);
-                programData.put("season", season);
-                programData.put("episode", episode);
-                programData.put("tvShowName", tvShowName);
-                programs.put(programData);
-
-                // Find next program first byte
-                i += offset + tvShowNameLength;
-                while (i < b.length-stover.length) {
-                    boolean foundStover = true;
-                    for (int j=0; j<stover.length; j++) {
-                        if (b[i+j] != stover[j]) {
-                            foundStover = false;
-                            break;
-                        }
-                    }
-                    if (foundStover) break;
-                    i++;
-                }
-                i += stover.length;
-            } catch (Exception e) {
-                // The file has ended abruptly or is corrupted
+            int offset = i + 32 + titleLength;
+            if (offset + 13 > length) break;
+            int tvShowId = ((b[offset + 5] & 0xff) << 8) | (b[offset + 6] & 0xff);
+            int episode = b[offset + 8] & 0xff;
+            int year = ((b[offset + 9] & 0xff) << 8) | (b[offset + 10] & 0xff);
+            int season = b[offset + 11] & 0xff;
+            int tvShowNameLength = b[offset + 12] & 0xff;
+            if (offset + 13 + tvShowNameLength > length) break;
+
+            if (pId < 0 || start < 0 || duration <= 0 || year > 3000) {
+                // The file is corrupted
                 break;
             }
+
+            String title = decodeEpgString(b, i + 32, titleLength, chars);
+            String tvShowName = decodeEpgString(b, offset + 13, tvShowNameLength, chars);
+            visitor.onProgram(pId, start, start + duration, genre, ageRating, title, year,
+                    tvShowId, season, episode, tvShowName);
+
+            // Find next program first byte
+            int delimiter = indexOfDelimiter(b, offset + 13 + tvShowNameLength, length);
+            if (delimiter < 0) break;
+            i = delimiter + DELIMITER.length;
+        }
+
+        if (DEBUG_DUMP_FILES) {
+            StringBuilder sb = new StringBuilder(length * 2);
+            for (int k=0; k<length; k++) sb.append(String.format("%02x", b[k]));
+            Log.v(LOGTAG, "EPG file " + serviceUrl + ": " + sb);
         }
 
-        // Create response
-        JSONObject file = new JSONObject();
-        file.put("epgServiceName", epgServiceName);
-        file.put("serviceVersion", serviceVersion);
-        file.put("serviceUrl", serviceUrl);
-        file.put("programs", programs);
-        return file;
+        return true;
+    }
+
+
+    /**
+     * Find record delimiter
+     * <p>
+     * Uses a Boyer-Moore-Horspool search, which skips up to a whole delimiter length per
+     * comparison.
+     * @param  b     Data
+     * @param  from  First index to search from
+     * @param  to    Index where data ends (exclusive)
+     * @return       Index of the delimiter or -1 if not found
+     */
+    private static int indexOfDelimiter(byte[] b, int from, int to) {
+        int last = DELIMITER.length - 1;
+        int i = from;
+        while (i + last < to) {
+            int j = last;
+            while (b[i + j] == DELIMITER[j]) {
+                if (j == 0) return i;
+                j--;
+            }
+            i += DELIMITER_SKIP[b[i + last] & 0xff];
+        }
+        return -1;
+    }
+
+
+    /**
+     * Decode EPG string
+     * <p>
+     * Strings are UTF-8 with every byte XOR'ed with 0x15. They are decoded straight from the
+     * source array, without intermediate copies.
+     * @param  b      Data
+     * @param  offset String offset
+     * @param  length String length in bytes
+     * @param  chars  Char buffer with room for at least length characters
+     * @return        EPG string
+     */
+    private static String decodeEpgString(byte[] b, int offset, int length, char[] chars) {
+        int numOfChars = 0;
+        int end = offset + length;
+        int i = offset;
+        while (i < end) {
+            int c = (b[i++] ^ 0x15) & 0xff;
+            if (c < 0x80) {
+                chars[numOfChars++] = (char) c;
+            } else if (c >= 0xc2 && c < 0xe0 && i < end && isContinuation(b[i])) {
+                chars[numOfChars++] = (char) (((c & 0x1f) << 6) | ((b[i++] ^ 0x15) & 0x3f));
+            } else if (c >= 0xe0 && c < 0xf0 && i + 1 < end && isContinuation(b[i]) &&
+                    isContinuation(b[i + 1])) {
+                int value = ((c & 0x0f) << 12) | (((b[i] ^ 0x15) & 0x3f) << 6) |
+                        ((b[i + 1] ^ 0x15) & 0x3f);
+                if (value < 0x800 || (value >= 0xd800 && value <= 0xdfff)) {
+                    return decodeEpgStringSlow(b, offset, length);
+                }
+                chars[numOfChars++] = (char) value;
+                i += 2;
+            } else {
+                // Rare in EPG data (4-byte or malformed sequences), let the charset handle it
+                return decodeEpgStringSlow(b, offset, length);
+            }
+        }
+        return new String(chars, 0, numOfChars);
+    }
+
+
+    /**
+     * Is UTF-8 continuation byte
+     * @param  value Obfuscated byte
+     * @return       Whether byte is a continuation byte
+     */
+    private static boolean isContinuation(byte value) {
+        return ((value ^ 0x15) & 0xc0) == 0x80;
+    }
+
+
+    /**
+     * Decode EPG string using the charset decoder
+     * @param  b      Data
+     * @param  offset String offset
+     * @param  length String length in bytes
+     * @return        EPG string
+     */
+    private static String decodeEpgStringSlow(byte[] b, int offset, int length) {
+        byte[] res = new byte[length];
+        for (int i=0; i<length; i++) {
+            res[i] = (byte) (b[offset + i] ^ 0x15);
+        }
+        return new String(res, StandardCharsets.UTF_8);
     }
 
 
@@ -160,11 +424,9 @@ public class EpgDownloader extends Thread {
      * @param  b Raw bytes
      * @return   EPG string
      */
-    private String parseEpgString(byte[] b) {
-        for (int i=0; i<b.length; i++) {
-            b[i] ^= 0x15;
-        }
-        return new String(b);
+    @VisibleForTesting
+    public static String parseEpgString(byte[] b) {
+        return decodeEpgString(b, 0, b.length, new char[b.length]);
     }
 
 }
@@ -0,0 +1,72 @@
+package tk.josemmo.movistartv.client;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A program from the EPG
+ */
+public class EpgProgram {
+    public final int pId;
+    public final int start;
+    public final int end;
+    public final int genre;
+    public final int ageRating;
+    public final String title;
+    public final int year;
+    public final int tvShowId;
+    public final int season;
+    public final int episode;
+    public final String tvShowName;
+
+    /**
+     * EpgProgram constructor
+     * @param pId        Program ID
+     * @param start      Start time in seconds since epoch
+     * @param end        End time in seconds since epoch
+     * @param genre      Genre code
+     * @param ageRating  Age rating code
+     * @param title      Program title
+     * @param year       Production year
+     * @param tvShowId   TV show ID
+     * @param season     Season number
+     * @param episode    Episode number
+     * @param tvShowName TV show name
+     */
+    public EpgProgram(int pId, int start, int end, int genre, int ageRating, String title,
+                      int year, int tvShowId, int season, int episode, String tvShowName) {
+        this.pId = pId;
+        this.start = start;
+        this.end = end;
+        this.genre = genre;
+        this.ageRating = ageRating;
+        this.title = title;
+        this.year = year;
+        this.tvShowId = tvShowId;
+        this.season = season;
+        this.episode = episode;
+        this.tvShowName = tvShowName;
+    }
+
+
+    /**
+     * To JSON
+     * @return JSON representation, for debugging purposes
+     */
+    public JSONObject toJson() throws JSONException {
+        JSONObject res = new JSONObject();
+        res.put("pId", pId);
+        res.put("start", start);
+        res.put("end", end);
+        res.put("genre", genre);
+        res.put("ageRating", ageRating);
+        res.put("title", title);
+        res.put("year", year);
+        res.put("tvShowId", tvShowId);
+        res.put("season", season);
+        res.put("episode", episode);
+        res.put("tvShowName", tvShowName);
+        return res;
+    }
+
+}
@@ -0,0 +1,111 @@
+package tk.josemmo.movistartv.client;
+
+/**
+ * Programs of a single channel, sorted by start time and accessed by index
+ */
+public interface EpgPrograms {
+    /**
+     * Get number of programs
+     * @return Number of programs
+     */
+    int size();
+
+
+    /**
+     * Get program ID
+     * @param  i Program index
+     * @return   Program ID
+     */
+    int getPId(int i);
+
+
+    /**
+     * Get start time
+     * @param  i Program index
+     * @return   Start time in seconds since epoch
+     */
+    int getStart(int i);
+
+
+    /**
+     * Get end time
+     * @param  i Program index
+     * @return   End time in seconds since epoch
+     */
+    int getEnd(int i);
+
+
+    /**
+     * Get genre
+     * @param  i Program index
+     * @return   Genre code
+     */
+    int getGenre(int i);
+
+
+    /**
+     * Get age rating
+     * @param  i Program index
+     * @return   Age rating code
+     */
+    int getAgeRating(int i);
+
+
+    /**
+     * Get title
+     * @param  i Program index
+     * @return   Program title
+     */
+    String getTitle(int i);
+
+
+    /**
+     * Get year
+     * @param  i Program index
+     * @return   Production year
+     */
+    int getYear(int i);
+
+
+    /**
+     * Get TV show ID
+     * @param  i Program index
+     * @return   TV show ID
+     */
+    int getTvShowId(int i);
+
+
+    /**
+     * Get season
+     * @param  i Program index
+     * @return   Season number
+     */
+    int getSeason(int i);
+
+
+    /**
+     * Get episode
+     * @param  i Program index
+     * @return   Episode number
+     */
+    int getEpisode(int i);
+
+
+    /**
+     * Get TV show name
+     * @param  i Program index
+     * @return   TV show name
+     */
+    String getTvShowName(int i);
+
+
+    /**
+     * Get maximum end time
+     * <p>
+     * This value never decreases with the index, so it serves as an interval index for finding
+     * programs which overlap a given time.
+     * @param  i Program index
+     * @return   Maximum end time among programs from 0 up to i (inclusive)
+     */
+    int getMaxEnd(int i);
+}
@@ -0,0 +1,431 @@
+package tk.josemmo.movistartv.client;
+
+import android.util.SparseArray;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Compact in-memory EPG, partitioned by EPG service name and sorted by start time.
+ * <p>
+ * Programs are stored in primitive columns instead of one object per program. Titles and TV
+ * show names are deduplicated into a single string table shared by all partitions, as the same
+ * names repeat across channels and days. A program takes around 32 bytes plus its share of the
+ * string table.
+ */
+public class EpgStore implements EpgData {
+    private final SparseArray<Partition> partitions;
+    private final String[] strings;
+
+    /**
+     * EpgStore constructor
+     * @param partitions Sorted partitions indexed by EPG service name
+     * @param strings    String table
+     */
+    private EpgStore(SparseArray<Partition> partitions, String[] strings) {
+        this.partitions = partitions;
+        this.strings = strings;
+    }
+
+
+    /**
+     * Get number of partitions
+     * @return Number of partitions
+     */
+    public int getNumOfPartitions() {
+        return partitions.size();
+    }
+
+
+    /**
+     * Get number of programs
+     * @return Number of programs across all partitions
+     */
+    public int getNumOfPrograms() {
+        int res = 0;
+        for (int i=0; i<partitions.size(); i++) {
+            res += partitions.valueAt(i).size();
+        }
+        return res;
+    }
+
+
+    /**
+     * Get partition at index
+     * @param  index Partition index, between 0 and getNumOfPartitions()-1
+     * @return       Partition
+     */
+    public Partition getPartitionAt(int index) {
+        return partitions.valueAt(index);
+    }
+
+
+    /**
+     * Get partition
+     * @param  epgServiceName EPG service name
+     * @return                Programs of that channel or NULL if not found
+     */
+    @Nullable
+    public Partition getPartition(int epgServiceName) {
+        return partitions.get(epgServiceName);
+    }
+
+
+    @Override
+    @Nullable
+    public EpgPrograms getPrograms(int epgServiceName) {
+        return partitions.get(epgServiceName);
+    }
+
+
+    /**
+     * Programs of a single channel, sorted by start time
+     */
+    public class Partition implements EpgPrograms {
+        private final int epgServiceName;
+        private int size = 0;
+        private int[] pId;
+        private int[] start;
+        private int[] end;
+        private int[] year;
+        private int[] tvShowId;
+        private int[] title;
+        private int[] tvShowName;
+        private byte[] genre;
+        private byte[] ageRating;
+        private byte[] season;
+        private byte[] episode;
+        private int[] maxEnd = null;
+
+        /**
+         * Partition constructor
+         * @param epgServiceName EPG service name
+         * @param capacity       Initial capacity
+         */
+        private Partition(int epgServiceName, int capacity) {
+            this.epgServiceName = epgServiceName;
+            pId = new int[capacity];
+            start = new int[capacity];
+            end = new int[capacity];
+            year = new int[capacity];
+            tvShowId = new int[capacity];
+            title = new int[capacity];
+            tvShowName = new int[capacity];
+            genre = new byte[capacity];
+            ageRating = new byte[capacity];
+            season = new byte[capacity];
+            episode = new byte[capacity];
+        }
+
+
+        /**
+         * Get EPG service name
+         * @return EPG service name
+         */
+        public int getEpgServiceName() {
+            return epgServiceName;
+        }
+
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+
+        @Override
+        public int getPId(int i) {
+            return pId[i];
+        }
+
+
+        @Override
+        public int getStart(int i) {
+            return start[i];
+        }
+
+
+        @Override
+        public int getEnd(int i) {
+            return end[i];
+        }
+
+
+        @Override
+        public int getGenre(int i) {
+            return genre[i] & 0xff;
+        }
+
+
+        @Override
+        public int getAgeRating(int i) {
+            return ageRating[i] & 0xff;
+        }
+
+
+        @Override
+        public String getTitle(int i) {
+            return strings[title[i]];
+        }
+
+
+        @Override
+        public int getYear(int i) {
+            return year[i];
+        }
+
+
+        @Override
+        public int getTvShowId(int i) {
+            return tvShowId[i];
+        }
+
+
+        @Override
+        public int getSeason(int i) {
+            return season[i] & 0xff;
+        }
+
+
+        @Override
+        public int getEpisode(int i) {
+            return episode[i] & 0xff;
+        }
+
+
+        @Override
+        public String getTvShowName(int i) {
+            return strings[tvShowName[i]];
+        }
+
+
+        @Override
+        public int getMaxEnd(int i) {
+            return maxEnd[i];
+        }
+
+
+        /**
+         * Get program
+         * @param  i Program index
+         * @return   Program instance, for debugging purposes
+         */
+        public EpgProgram getProgram(int i) {
+            return new EpgProgram(getPId(i), getStart(i), getEnd(i), getGenre(i), getAgeRating(i),
+                    getTitle(i), getYear(i), getTvShowId(i), getSeason(i), getEpisode(i),
+                    getTvShowName(i));
+        }
+
+
+        /**
+         * Append program
+         * @param source     Source partition
+         * @param i          Program index in source
+         * @param titleIndex Title index in string table
+         * @param nameIndex  TV show name index in string table
+         */
+        private void append(Partition source, int i, int titleIndex, int nameIndex) {
+            append(source.pId[i], source.start[i], source.end[i], source.genre[i],
+                    source.ageRating[i], titleIndex, source.year[i], source.tvShowId[i],
+                    source.season[i], source.episode[i], nameIndex);
+        }
+
+
+        /**
+         * Append program
+         * @param pId        Program ID
+         * @param start      Start time in seconds since epoch
+         * @param end        End time in seconds since epoch
+         * @param genre      Genre code
+         * @param ageRating  Age rating code
+         * @param title      Title index in string table
+         * @param year       Production year
+         * @param tvShowId   TV show ID
+         * @param season     Season number
+         * @param episode    Episode number
+         * @param tvShowName TV show name index in string table
+         */
+        private void append(int pId, int start, int end, int genre, int ageRating, int title,
+                            int year, int tvShowId, int season, int episode, int tvShowName) {
+            if (size == this.pId.length) {
+                grow(Math.max(16, size * 2));
+            }
+            this.pId[size] = pId;
+            this.start[size] = start;
+            this.end[size] = end;
+            this.genre[size] = (byte) genre;
+            this.ageRating[size] = (byte) ageRating;
+            this.title[size] = title;
+            this.year[size] = year;
+            this.tvShowId[size] = tvShowId;
+            this.season[size] = (byte) season;
+            this.episode[size] = (byte) episode;
+            this.tvShowName[size] = tvShowName;
+            size++;
+        }
+
+
+        /**
+         * Resize columns
+         * @param capacity New capacity
+         */
+        private void grow(int capacity) {
+            pId = Arrays.copyOf(pId, capacity);
+            start = Arrays.copyOf(start, capacity);
+            end = Arrays.copyOf(end, capacity);
+            year = Arrays.copyOf(year, capacity);
+            tvShowId = Arrays.copyOf(tvShowId, capacity);
+            title = Arrays.copyOf(title, capacity);
+            tvShowName = Arrays.copyOf(tvShowName, capacity);
+            genre = Arrays.copyOf(genre, capacity);
+            ageRating = Arrays.copyOf(ageRating, capacity);
+            season = Arrays.copyOf(season, capacity);
+            episode = Arrays.copyOf(episode, capacity);
+        }
+
+
+        /**
+         * Build maximum end time column
+         */
+        private void buildMaxEnd() {
+            maxEnd = new int[size];
+            int value = Integer.MIN_VALUE;
+            for (int i=0; i<size; i++) {
+                value = Math.max(value, end[i]);
+                maxEnd[i] = value;
+            }
+        }
+
+
+        /**
+         * Is sorted by start time
+         * @return Whether programs are sorted by start time
+         */
+        private boolean isSorted() {
+            for (int i=1; i<size; i++) {
+                if (start[i] < start[i-1]) return false;
+            }
+            return true;
+        }
+    }
+
+
+    /**
+     * Builds a store from decoded EPG files
+     * <p>
+     * Not thread-safe, every thread decoding files should use its own builder and merge them
+     * afterwards with {@link #addAll(Builder)}.
+     */
+    public static class Builder implements EpgVisitor {
+        private final EpgStore store = new EpgStore(new SparseArray<Partition>(), null);
+        private final HashMap<String, Integer> stringIndexes = new HashMap<>();
+        private final ArrayList<String> strings = new ArrayList<>();
+        private Partition current = null;
+
+        /**
+         * Intern string
+         * @param  value String
+         * @return       Index in string table
+         */
+        private int intern(String value) {
+            Integer index = stringIndexes.get(value);
+            if (index == null) {
+                index = strings.size();
+                strings.add(value);
+                stringIndexes.put(value, index);
+            }
+            return index;
+        }
+
+
+        /**
+         * Get or create partition
+         * @param  epgServiceName EPG service name
+         * @param  capacity       Initial capacity for new partitions
+         * @return                Partition
+         */
+        private Partition getOrCreatePartition(int epgServiceName, int capacity) {
+            Partition partition = store.partitions.get(epgServiceName);
+            if (partition == null) {
+                partition = store.new Partition(epgServiceName, capacity);
+                store.partitions.put(epgServiceName, partition);
+            }
+            return partition;
+        }
+
+
+        @Override
+        public boolean onFile(int epgServiceName, int serviceVersion, String serviceUrl) {
+            current = getOrCreatePartition(epgServiceName, 64);
+            return true;
+        }
+
+
+        @Override
+        public void onProgram(int pId, int start, int end, int genre, int ageRating, String title,
+                              int year, int tvShowId, int season, int episode, String tvShowName) {
+            current.append(pId, start, end, genre, ageRating, intern(title), year, tvShowId,
+                    season, episode, intern(tvShowName));
+        }
+
+
+        /**
+         * Add all programs from another builder
+         * @param  other Other builder, not modified
+         * @return       This instance
+         */
+        public Builder addAll(Builder other) {
+            SparseArray<Partition> otherPartitions = other.store.partitions;
+            for (int i=0; i<otherPartitions.size(); i++) {
+                Partition source = otherPartitions.valueAt(i);
+                Partition target = getOrCreatePartition(source.epgServiceName, source.size);
+                for (int j=0; j<source.size; j++) {
+                    target.append(source, j, intern(other.strings.get(source.title[j])),
+                            intern(other.strings.get(source.tvShowName[j])));
+                }
+            }
+            return this;
+        }
+
+
+        /**
+         * Build store
+         * <p>
+         * Columns are trimmed and sorted by start time. The builder must not be used afterwards.
+         * @return EPG store
+         */
+        public EpgStore build() {
+            SparseArray<Partition> res = new SparseArray<>(store.partitions.size());
+            EpgStore epgStore = new EpgStore(res, strings.toArray(new String[0]));
+            for (int i=0; i<store.partitions.size(); i++) {
+                Partition source = store.partitions.valueAt(i);
+                Partition target = epgStore.new Partition(source.epgServiceName, source.size);
+                if (source.isSorted()) {
+                    for (int j=0; j<source.size; j++) {
+                        target.append(source, j, source.title[j], source.tvShowName[j]);
+                    }
+                } else {
+                    // Start times are never negative, so packing them with the index sorts
+                    // by start time and keeps the original order for ties
+                    long[] order = new long[source.size];
+                    for (int j=0; j<source.size; j++) {
+                        order[j] = ((long) source.start[j] << 32) | j;
+                    }
+                    Arrays.sort(order);
+                    for (long packed : order) {
+                        int j = (int) packed;
+                        target.append(source, j, source.title[j], source.tvShowName[j]);
+                    }
+                }
+                target.buildMaxEnd();
+                res.put(source.epgServiceName, target);
+            }
+            stringIndexes.clear();
+            return epgStore;
+        }
+    }
+
+}
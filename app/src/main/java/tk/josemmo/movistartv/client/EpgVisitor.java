@@ -0,0 +1,36 @@
+package tk.josemmo.movistartv.client;
+
+/**
+ * Receives the contents of binary EPG files as they are decoded, without building any
+ * intermediate representation.
+ * <p>
+ * Implementations must not throw, as decoding errors and visitor errors cannot be told apart.
+ */
+public interface EpgVisitor {
+    /**
+     * On file
+     * @param  epgServiceName EPG service name of the channel
+     * @param  serviceVersion Service version of the file
+     * @param  serviceUrl     Service URL of the file
+     * @return                Whether to visit the programs of this file
+     */
+    boolean onFile(int epgServiceName, int serviceVersion, String serviceUrl);
+
+
+    /**
+     * On program
+     * @param pId        Program ID
+     * @param start      Start time in seconds since epoch
+     * @param end        End time in seconds since epoch
+     * @param genre      Genre code
+     * @param ageRating  Age rating code
+     * @param title      Program title
+     * @param year       Production year
+     * @param tvShowId   TV show ID
+     * @param season     Season number
+     * @param episode    Episode number
+     * @param tvShowName TV show name
+     */
+    void onProgram(int pId, int start, int end, int genre, int ageRating, String title, int year,
+                   int tvShowId, int season, int episode, String tvShowName);
+}
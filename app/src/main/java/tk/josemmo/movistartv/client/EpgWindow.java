@@ -0,0 +1,82 @@
+package tk.josemmo.movistartv.client;
+
+/**
+ * Range of programs which may overlap a time window
+ */
+public class EpgWindow {
+    public final int from;
+    public final int to;
+
+    /**
+     * EpgWindow constructor
+     * @param from First program index (inclusive)
+     * @param to   Last program index (exclusive)
+     */
+    private EpgWindow(int from, int to) {
+        this.from = from;
+        this.to = Math.max(from, to);
+    }
+
+
+    /**
+     * Find window
+     * <p>
+     * Both bounds are found with a binary search, the lower one over the maximum end times so
+     * that long programs starting before the window are not missed. Programs inside the range
+     * may still end before the window, callers must check {@link #overlaps}.
+     * @param  programs Programs sorted by start time
+     * @param  start    Window start in seconds since epoch (inclusive)
+     * @param  end      Window end in seconds since epoch (exclusive)
+     * @return          Range of candidate programs
+     */
+    public static EpgWindow find(EpgPrograms programs, int start, int end) {
+        // First program whose maximum end is after the window start
+        int low = 0;
+        int high = programs.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (programs.getMaxEnd(mid) > start) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        int from = low;
+
+        // First program starting at or after the window end
+        high = programs.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (programs.getStart(mid) < end) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        return new EpgWindow(from, low);
+    }
+
+
+    /**
+     * Overlaps window
+     * @param  programs Programs
+     * @param  i        Program index
+     * @param  start    Window start in seconds since epoch (inclusive)
+     * @param  end      Window end in seconds since epoch (exclusive)
+     * @return          Whether program overlaps the window
+     */
+    public static boolean overlaps(EpgPrograms programs, int i, int start, int end) {
+        return programs.getStart(i) < end && programs.getEnd(i) > start;
+    }
+
+
+    /**
+     * Get number of candidate programs
+     * @return Number of programs in range
+     */
+    public int size() {
+        return to - from;
+    }
+
+}
@@ -0,0 +1,116 @@
+package tk.josemmo.movistartv.client;
+
+import android.os.Build;
+import android.util.Log;
+
+import androidx.annotation.RequiresApi;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * Receives several DVB-STP carousels from a single thread.
+ * <p>
+ * Every multicast group gets its own non-blocking channel registered on one {@link Selector},
+ * and incoming datagrams are demultiplexed by group into the {@link UdpClient} that reassembles
+ * that carousel. Requires API 24 for multicast channels.
+ */
+@RequiresApi(api = Build.VERSION_CODES.N)
+public class MulticastListener {
+    private static final String LOGTAG = "MulticastListener";
+
+    /**
+     * Listener notified when the download of a single carousel ends
+     */
+    public interface OnDownloadFinishedListener {
+        /**
+         * On download finished
+         * @param client  Client which has finished
+         * @param success Whether all files were received or the download was aborted
+         */
+        void onDownloadFinished(UdpClient client, boolean success);
+    }
+
+    private final ArrayList<UdpClient> clients = new ArrayList<>();
+    private final ArrayList<OnDownloadFinishedListener> listeners = new ArrayList<>();
+
+    /**
+     * Add carousel
+     * @param  client   Client for reassembling the carousel
+     * @param  listener Listener notified when that carousel has finished
+     * @return          This instance
+     */
+    public MulticastListener add(UdpClient client, OnDownloadFinishedListener listener) {
+        clients.add(client);
+        listeners.add(listener);
+        return this;
+    }
+
+
+    /**
+     * Listen until every carousel has finished
+     */
+    public void listen() throws IOException {
+        Selector selector = Selector.open();
+        boolean[] finished = new boolean[clients.size()];
+        int remaining = clients.size();
+        ByteBuffer buffer = UdpClient.acquireBuffer();
+
+        try {
+            // Join all multicast groups
+            for (int i=0; i<clients.size(); i++) {
+                DatagramChannel channel = clients.get(i).openChannel();
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_READ, i);
+            }
+            Log.d(LOGTAG, "Listening to " + remaining + " multicast groups");
+
+            // Demultiplex datagrams until all carousels are complete
+            while (remaining > 0) {
+                selector.select();
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    int index = (Integer) key.attachment();
+                    DatagramChannel channel = (DatagramChannel) key.channel();
+                    UdpClient client = clients.get(index);
+
+                    boolean done = false;
+                    buffer.clear();
+                    while (!done && channel.receive(buffer) != null) {
+                        buffer.flip();
+                        done = client.parseChunk(buffer);
+                        buffer.clear();
+                    }
+
+                    if (done) {
+                        key.cancel();
+                        channel.close();
+                        finished[index] = true;
+                        remaining--;
+                        Log.d(LOGTAG, "Finished carousel at " + client.getTarget());
+                        listeners.get(index).onDownloadFinished(client, true);
+                    }
+                }
+            }
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+            selector.close();
+            UdpClient.releaseBuffer(buffer);
+
+            // Notify carousels aborted by an exception
+            for (int i=0; i<finished.length; i++) {
+                if (!finished[i]) listeners.get(i).onDownloadFinished(clients.get(i), false);
+            }
+        }
+    }
+
+}
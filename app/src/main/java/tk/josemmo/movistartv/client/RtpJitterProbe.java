@@ -0,0 +1,180 @@
+package tk.josemmo.movistartv.client;
+
+import android.os.Build;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * Measures inter-arrival jitter and packet loss of a multicast RTP stream.
+ * <p>
+ * Joins the same group as the player for a short while and follows RFC 3550: jitter is the
+ * smoothed difference between packet spacing at the receiver and at the sender (RTP timestamps),
+ * and loss comes from gaps in sequence numbers.
+ */
+public class RtpJitterProbe {
+    private static final String LOGTAG = "RtpJitterProbe";
+    private static final double RTP_CLOCK_RATE = 90000;
+    private static final int MIN_PACKETS = 50;
+
+    private final String host;
+    private final int port;
+    private int received = 0;
+    private long baseSeq = -1;
+    private long maxSeq = -1;
+    private double lastTransit = Double.NaN;
+    private double jitter = 0;
+
+    /**
+     * Probe result
+     */
+    public static class Result {
+        public final String interfaceName;
+        public final int packets;
+        public final double jitterMs;
+        public final double lossRatio;
+
+        /**
+         * Result constructor
+         * @param interfaceName Network interface name
+         * @param packets       Number of packets received
+         * @param jitterMs      Inter-arrival jitter in milliseconds
+         * @param lossRatio     Ratio of lost packets between 0 and 1
+         */
+        private Result(String interfaceName, int packets, double jitterMs, double lossRatio) {
+            this.interfaceName = interfaceName;
+            this.packets = packets;
+            this.jitterMs = jitterMs;
+            this.lossRatio = lossRatio;
+        }
+    }
+
+    /**
+     * RtpJitterProbe constructor
+     * @param host Multicast group address
+     * @param port Port
+     */
+    public RtpJitterProbe(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+
+    /**
+     * Get multicast interface name
+     * @return Name of the interface used for joining multicast groups or NULL if none
+     */
+    @Nullable
+    public static String getInterfaceName() {
+        try {
+            NetworkInterface iface = UdpClient.findMulticastInterface();
+            return (iface == null) ? null : iface.getName();
+        } catch (IOException e) {
+            Log.e(LOGTAG, "Failed to find multicast interface");
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+
+    /**
+     * Measure stream
+     * @param  durationMs Measuring duration in milliseconds
+     * @return            Result or NULL if not enough RTP packets were received
+     * @throws IOException if failed to join the multicast group
+     */
+    @Nullable
+    @RequiresApi(api = Build.VERSION_CODES.N)
+    public Result measure(long durationMs) throws IOException {
+        InetAddress mcastAddr = InetAddress.getByName(host);
+        NetworkInterface iface = UdpClient.findMulticastInterface();
+        if (iface == null) {
+            throw new IOException("No network interface available for multicast");
+        }
+
+        DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        Selector selector = null;
+        ByteBuffer buffer = UdpClient.acquireBuffer();
+        try {
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            channel.bind(new InetSocketAddress(mcastAddr, port));
+            channel.join(mcastAddr, iface);
+            channel.configureBlocking(false);
+            selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_READ);
+
+            long deadline = System.nanoTime() + durationMs * 1000000;
+            long remaining;
+            while ((remaining = (deadline - System.nanoTime()) / 1000000) > 0) {
+                if (selector.select(remaining) == 0) continue;
+                selector.selectedKeys().clear();
+                buffer.clear();
+                while (channel.receive(buffer) != null) {
+                    buffer.flip();
+                    onPacket(buffer, System.nanoTime());
+                    buffer.clear();
+                }
+            }
+        } finally {
+            if (selector != null) selector.close();
+            channel.close();
+            UdpClient.releaseBuffer(buffer);
+        }
+
+        if (received < MIN_PACKETS) {
+            Log.d(LOGTAG, "Not enough RTP packets from " + host + ":" + port + " (" + received + ")");
+            return null;
+        }
+        long expected = maxSeq - baseSeq + 1;
+        double lossRatio = Math.max(0, expected - received) / (double) expected;
+        double jitterMs = jitter * 1000 / RTP_CLOCK_RATE;
+        return new Result(iface.getName(), received, jitterMs, lossRatio);
+    }
+
+
+    /**
+     * On packet received
+     * @param b           Datagram, from position zero up to the buffer limit
+     * @param arrivalTime Arrival time in nanoseconds
+     */
+    private void onPacket(ByteBuffer b, long arrivalTime) {
+        if (b.limit() < 12 || (b.get(0) & 0xC0) != 0x80) {
+            return;
+        }
+        int seq = b.getShort(2) & 0xFFFF;
+        long timestamp = b.getInt(4) & 0xFFFFFFFFL;
+
+        // Extend sequence number to detect wrap-arounds
+        if (received == 0) {
+            baseSeq = seq;
+            maxSeq = seq;
+        } else {
+            long extSeq = maxSeq + (short) (seq - (int) (maxSeq & 0xFFFF));
+            if (extSeq > maxSeq) maxSeq = extSeq;
+        }
+        received++;
+
+        // Update jitter estimate, ignoring timestamp discontinuities
+        double transit = arrivalTime * RTP_CLOCK_RATE / 1e9 - timestamp;
+        if (!Double.isNaN(lastTransit)) {
+            double d = Math.abs(transit - lastTransit);
+            if (d < RTP_CLOCK_RATE) {
+                jitter += (d - jitter) / 16;
+            }
+        }
+        lastTransit = transit;
+    }
+
+}
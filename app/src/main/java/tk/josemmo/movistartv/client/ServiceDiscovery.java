@@ -0,0 +1,150 @@
+package tk.josemmo.movistartv.client;
+
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Service discovery data extracted from the files of the service provider carousel.
+ */
+public class ServiceDiscovery {
+    private final SparseArray<Service> services = new SparseArray<>();
+    private final LinkedHashMap<String, SparseIntArray> packages = new LinkedHashMap<>();
+    private final ArrayList<String> epgEntrypoints = new ArrayList<>();
+    private boolean hasServiceList = false;
+    private boolean hasPackageDiscovery = false;
+    private boolean hasBcgDiscovery = false;
+
+    /**
+     * Service from a service list
+     */
+    public static class Service {
+        public int serviceName = -1;
+        public int epgServiceName = -1;
+        @Nullable
+        public String address = null;
+        public String name = "";
+        public String shortName = "";
+        public String description = "";
+        public String logoUri = "";
+    }
+
+
+    /**
+     * Add service
+     * @param service Service
+     */
+    void addService(Service service) {
+        if (service.epgServiceName < 0) {
+            service.epgServiceName = service.serviceName;
+        }
+        services.put(service.serviceName, service);
+    }
+
+
+    /**
+     * Add package
+     * @param name  Package name
+     * @param dials Map of dials to service names
+     */
+    void addPackage(String name, SparseIntArray dials) {
+        packages.put(name, dials);
+    }
+
+
+    /**
+     * Add EPG entrypoint
+     * @param entrypoint EPG entrypoint address and port
+     */
+    void addEpgEntrypoint(String entrypoint) {
+        epgEntrypoints.add(entrypoint);
+    }
+
+
+    /**
+     * Set found documents
+     * @param serviceList       Whether a service list was found
+     * @param packageDiscovery  Whether a package discovery was found
+     * @param bcgDiscovery      Whether a BCG discovery was found
+     */
+    void setFoundDocuments(boolean serviceList, boolean packageDiscovery, boolean bcgDiscovery) {
+        hasServiceList |= serviceList;
+        hasPackageDiscovery |= packageDiscovery;
+        hasBcgDiscovery |= bcgDiscovery;
+    }
+
+
+    /**
+     * Has service list
+     * @return Whether a service list was found
+     */
+    public boolean hasServiceList() {
+        return hasServiceList;
+    }
+
+
+    /**
+     * Has package discovery
+     * @return Whether a package discovery was found
+     */
+    public boolean hasPackageDiscovery() {
+        return hasPackageDiscovery;
+    }
+
+
+    /**
+     * Has BCG discovery
+     * @return Whether a BCG discovery (EPG entrypoints) was found
+     */
+    public boolean hasBcgDiscovery() {
+        return hasBcgDiscovery;
+    }
+
+
+    /**
+     * Get service
+     * @param  serviceName Service name
+     * @return             Service or NULL if not found
+     */
+    @Nullable
+    public Service getService(int serviceName) {
+        return services.get(serviceName);
+    }
+
+
+    /**
+     * Get dials
+     * @param  tvPackages Subscribed TV packages
+     * @return            Map of dials to service names, sorted by dial
+     */
+    @NonNull
+    public SparseIntArray getDials(Collection<String> tvPackages) {
+        SparseIntArray res = new SparseIntArray();
+        for (String name : packages.keySet()) {
+            if (!tvPackages.contains(name)) continue;
+            SparseIntArray dials = packages.get(name);
+            for (int i=0; i<dials.size(); i++) {
+                res.put(dials.keyAt(i), dials.valueAt(i));
+            }
+        }
+        return res;
+    }
+
+
+    /**
+     * Get EPG entrypoints
+     * @return EPG entrypoints, one per day
+     */
+    @NonNull
+    public List<String> getEpgEntrypoints() {
+        return epgEntrypoints;
+    }
+
+}
@@ -0,0 +1,258 @@
+package tk.josemmo.movistartv.client;
+
+import android.util.SparseIntArray;
+import android.util.Xml;
+
+import androidx.annotation.Nullable;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+/**
+ * Single-pass parser for service discovery documents.
+ * <p>
+ * Reads services, packages and EPG entrypoints straight from the bytes of a carousel file using
+ * the platform pull parser, without building a DOM or decoding the whole file into a string. The
+ * encoding is taken from the XML declaration (or byte order mark), and parsing stops at the
+ * closing ServiceDiscovery tag as carousel files are padded after it.
+ */
+public class ServiceDiscoveryParser {
+    private final XmlPullParser parser;
+
+    /**
+     * ServiceDiscoveryParser constructor
+     * @param parser Pull parser with its input already set
+     */
+    private ServiceDiscoveryParser(XmlPullParser parser) {
+        this.parser = parser;
+    }
+
+
+    /**
+     * Parse service discovery file
+     * @param b      File contents
+     * @param length File length in bytes
+     * @param res    Instance where to add parsed data
+     * @throws XmlPullParserException if the file is not a well-formed document
+     * @throws IOException if failed to read the file contents
+     */
+    public static void parse(byte[] b, int length, ServiceDiscovery res)
+            throws XmlPullParserException, IOException {
+        XmlPullParser parser = Xml.newPullParser();
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+        parser.setInput(new ByteArrayInputStream(b, 0, Math.min(length, b.length)), null);
+        new ServiceDiscoveryParser(parser).parseInto(res);
+    }
+
+
+    /**
+     * Parse into
+     * @param res Instance where to add parsed data
+     */
+    private void parseInto(ServiceDiscovery res) throws XmlPullParserException, IOException {
+        boolean hasServiceList = false;
+        boolean hasPackageDiscovery = false;
+        boolean hasBcgDiscovery = false;
+
+        // Current SingleService
+        ServiceDiscovery.Service service = null;
+        boolean inReplacement = false;
+        boolean hasReplacement = false;
+        boolean inLocation = false;
+        boolean hasLocation = false;
+        boolean inSI = false;
+        boolean hasSI = false;
+        boolean hasName = false;
+        boolean hasShortName = false;
+        boolean hasDescription = false;
+
+        // Current Package and Service inside it
+        String packageName = null;
+        SparseIntArray packageDials = null;
+        int packageServiceName = -1;
+        int packageDial = -1;
+
+        int event;
+        while ((event = parser.next()) != XmlPullParser.END_DOCUMENT) {
+            if (event == XmlPullParser.END_TAG) {
+                String name = parser.getName();
+                if (name.equals("ServiceDiscovery")) {
+                    break;
+                } else if (name.equals("SingleService")) {
+                    if (service != null && service.serviceName >= 0) {
+                        res.addService(service);
+                    }
+                    service = null;
+                } else if (name.equals("ReplacementService")) {
+                    inReplacement = false;
+                } else if (name.equals("ServiceLocation")) {
+                    inLocation = false;
+                } else if (name.equals("SI")) {
+                    inSI = false;
+                } else if (name.equals("Package")) {
+                    if (packageName != null && packageDials != null) {
+                        res.addPackage(packageName, packageDials);
+                    }
+                    packageName = null;
+                    packageDials = null;
+                } else if (name.equals("Service")) {
+                    if (packageDials != null && packageServiceName >= 0 && packageDial >= 0) {
+                        packageDials.put(packageDial, packageServiceName);
+                    }
+                }
+                continue;
+            }
+            if (event != XmlPullParser.START_TAG) continue;
+            String name = parser.getName();
+
+            // Document types
+            if (name.equals("ServiceList")) {
+                hasServiceList = true;
+            } else if (name.equals("PackageDiscovery")) {
+                hasPackageDiscovery = true;
+            } else if (name.equals("BCGDiscovery")) {
+                hasBcgDiscovery = true;
+
+            // Service list (first match wins, like the DOM lookups this parser replaced)
+            } else if (name.equals("SingleService")) {
+                service = new ServiceDiscovery.Service();
+                inReplacement = false;
+                hasReplacement = false;
+                inLocation = false;
+                hasLocation = false;
+                inSI = false;
+                hasSI = false;
+                hasName = false;
+                hasShortName = false;
+                hasDescription = false;
+            } else if (service != null) {
+                if (name.equals("TextualIdentifier")) {
+                    if (inReplacement) {
+                        service.epgServiceName = getIntAttribute("ServiceName", -1);
+                        inReplacement = false;
+                    } else if (service.serviceName < 0) {
+                        service.serviceName = getIntAttribute("ServiceName", -1);
+                        String logoUri = getAttributeValue("logoURI");
+                        service.logoUri = (logoUri == null) ? "" : logoUri;
+                    }
+                } else if (name.equals("ReplacementService")) {
+                    inReplacement = !hasReplacement;
+                    hasReplacement = true;
+                } else if (name.equals("ServiceLocation")) {
+                    inLocation = !hasLocation;
+                    hasLocation = true;
+                } else if (name.equals("IPMulticastAddress")) {
+                    if (inLocation && service.address == null) {
+                        service.address = getSocketAddress();
+                    }
+                } else if (name.equals("SI")) {
+                    inSI = !hasSI;
+                    hasSI = true;
+                } else if (inSI && !hasName && name.equals("Name")) {
+                    service.name = readText();
+                    hasName = true;
+                } else if (inSI && !hasShortName && name.equals("ShortName")) {
+                    service.shortName = readText();
+                    hasShortName = true;
+                } else if (inSI && !hasDescription && name.equals("Description")) {
+                    service.description = readText();
+                    hasDescription = true;
+                }
+
+            // Package discovery
+            } else if (name.equals("Package")) {
+                packageName = null;
+                packageDials = new SparseIntArray();
+            } else if (packageDials != null) {
+                if (name.equals("PackageName")) {
+                    if (packageName == null) {
+                        packageName = readText();
+                    }
+                } else if (name.equals("Service")) {
+                    packageServiceName = -1;
+                    packageDial = -1;
+                } else if (name.equals("TextualID")) {
+                    packageServiceName = getIntAttribute("ServiceName", -1);
+                } else if (name.equals("LogicalChannelNumber")) {
+                    try {
+                        packageDial = Integer.parseInt(readText().trim());
+                    } catch (NumberFormatException e) {
+                        packageDial = -1;
+                    }
+                }
+
+            // BCG discovery
+            } else if (name.equals("DVBBINSTP")) {
+                res.addEpgEntrypoint(getSocketAddress());
+            }
+        }
+
+        res.setFoundDocuments(hasServiceList, hasPackageDiscovery, hasBcgDiscovery);
+    }
+
+
+    /**
+     * Get attribute value
+     * @param  name Attribute local name
+     * @return      Value or NULL if not found
+     */
+    @Nullable
+    private String getAttributeValue(String name) {
+        return parser.getAttributeValue(null, name);
+    }
+
+
+    /**
+     * Get integer attribute
+     * @param  name         Attribute local name
+     * @param  defaultValue Value to return when not found or not a number
+     * @return              Attribute value
+     */
+    private int getIntAttribute(String name, int defaultValue) {
+        String value = getAttributeValue(name);
+        if (value == null) return defaultValue;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+
+    /**
+     * Get socket address
+     * @return Address and port attributes joined by a colon
+     */
+    private String getSocketAddress() {
+        String address = getAttributeValue("Address");
+        String port = getAttributeValue("Port");
+        return ((address == null) ? "" : address) + ":" + ((port == null) ? "" : port);
+    }
+
+
+    /**
+     * Read text of current element, moving to its end tag
+     * @return Text content, including that of nested elements
+     */
+    private String readText() throws XmlPullParserException, IOException {
+        StringBuilder res = new StringBuilder();
+        int depth = 1;
+        while (depth > 0) {
+            int event = parser.next();
+            if (event == XmlPullParser.START_TAG) {
+                depth++;
+            } else if (event == XmlPullParser.END_TAG) {
+                depth--;
+            } else if (event == XmlPullParser.TEXT) {
+                res.append(parser.getText());
+            } else if (event == XmlPullParser.END_DOCUMENT) {
+                break;
+            }
+        }
+        return res.toString();
+    }
+
+}
@@ -2,11 +2,12 @@ package tk.josemmo.movistartv.client;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.os.Build;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 import android.text.TextUtils;
 import android.util.Log;
-import android.util.SparseArray;
 import android.util.SparseIntArray;
 
 import com.android.volley.RequestQueue;
@@ -15,31 +16,32 @@ import com.android.volley.toolbox.RequestFuture;
 import com.android.volley.toolbox.Volley;
 
 import org.json.JSONObject;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
+import org.xmlpull.v1.XmlPullParserException;
 
-import java.io.ByteArrayInputStream;
-import java.io.InputStream;
 import java.net.URL;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-
 public class TvClient {
     private static final String LOGTAG = "TvClient";
+    private static final String PREFS_NAME = "TvClientData";
     private static final String EPG_ENTRYPOINT_KEY = "epgEntrypoints";
-    private static final int MAX_EPG_DAYS = 2;
+    private static final String EPG_DAYS_KEY = "epgDays";
+    private static final int DEFAULT_EPG_DAYS = 2;
+    private static final String PROFILE_KEY_PREFIX = "profile.";
+    private static final String PROFILE_TIME_KEY = "profileTime";
+    private static final long PROFILE_TTL_MS = 24 * 60 * 60 * 1000L;
     private static final String RESOURCES_SERVER = "172.26.22.23";
     private static final String ENDPOINT = "http://172.26.22.23:2001/appserver/mvtv.do?action=";
 
     private SharedPreferences prefs;
     private RequestQueue requestQueue;
+    private CarouselCache carouselCache;
+    private EpgDiskCache epgCache = null;
 
     private String dvbEntrypoint;
     private int demarcation;
@@ -54,23 +56,74 @@ public class TvClient {
      * @param ctx Context
      */
     public TvClient(Context ctx) {
-        prefs = ctx.getApplicationContext().getSharedPreferences("TvClientData", Context.MODE_PRIVATE);
+        prefs = ctx.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
         requestQueue = Volley.newRequestQueue(ctx);
-        configureInstance();
+        carouselCache = new CarouselCache(ctx);
+        epgCache = new EpgDiskCache(ctx);
+
+        // Use persisted profile when available, revalidating it in background once expired
+        if (loadProfile()) {
+            long age = System.currentTimeMillis() - prefs.getLong(PROFILE_TIME_KEY, 0);
+            if (age < 0 || age > PROFILE_TTL_MS) {
+                revalidateProfile();
+            }
+        } else {
+            configureInstance();
+        }
     }
 
 
     /**
-     * Get JSON response
+     * TvClient constructor for profile revalidation
+     * @param prefs        Shared preferences
+     * @param requestQueue Request queue
+     */
+    private TvClient(SharedPreferences prefs, RequestQueue requestQueue) {
+        this.prefs = prefs;
+        this.requestQueue = requestQueue;
+    }
+
+
+    /**
+     * TvClient constructor for offline use, skips the bootstrap against Movistar+ servers
+     * <p>
+     * Offline instances keep their own preferences, so they never overwrite the EPG entrypoints
+     * of the real configuration.
+     * @param ctx        Context
+     * @param tvPackages Subscribed TV packages
+     * @param resBaseUri Resources base URI
+     */
+    @VisibleForTesting
+    public TvClient(Context ctx, List<String> tvPackages, String resBaseUri) {
+        prefs = ctx.getApplicationContext().getSharedPreferences("TvClientDataOffline", Context.MODE_PRIVATE);
+        carouselCache = new CarouselCache(ctx);
+        this.tvPackages = tvPackages;
+        this.resBaseUri = resBaseUri;
+        tvChannelLogoPath = "";
+        tvCoversPath = "";
+    }
+
+
+    /**
+     * Send JSON request
      * @param  url Request URL
-     * @return     Response
+     * @return     Future response
      */
-    @Nullable
-    private JSONObject getJsonResponse(String url) {
+    private RequestFuture<JSONObject> sendJsonRequest(String url) {
         RequestFuture<JSONObject> future = RequestFuture.newFuture();
         JsonObjectRequest request = new JsonObjectRequest(url, null, future, future);
         requestQueue.add(request);
+        return future;
+    }
+
 
+    /**
+     * Get JSON response
+     * @param  future Future response
+     * @return        Response
+     */
+    @Nullable
+    private JSONObject getJsonResponse(RequestFuture<JSONObject> future) {
         try {
             return future.get(10, TimeUnit.SECONDS);
         } catch (Exception e) {
@@ -100,11 +153,16 @@ public class TvClient {
 
     /**
      * Configure this instance
+     * @return Whether a complete profile was fetched and persisted
      */
-    private void configureInstance() {
-        JSONObject client = getJsonResponse(ENDPOINT + "getClientProfile");
-        JSONObject platform = getJsonResponse(ENDPOINT + "getPlatformProfile");
-        JSONObject config = getJsonResponse(ENDPOINT + "getConfigurationParams");
+    private boolean configureInstance() {
+        // Send all requests at once, the request queue runs them concurrently
+        RequestFuture<JSONObject> clientFuture = sendJsonRequest(ENDPOINT + "getClientProfile");
+        RequestFuture<JSONObject> platformFuture = sendJsonRequest(ENDPOINT + "getPlatformProfile");
+        RequestFuture<JSONObject> configFuture = sendJsonRequest(ENDPOINT + "getConfigurationParams");
+        JSONObject client = getJsonResponse(clientFuture);
+        JSONObject platform = getJsonResponse(platformFuture);
+        JSONObject config = getJsonResponse(configFuture);
 
         // Parse data from JSON responses
         try {
@@ -123,6 +181,7 @@ public class TvClient {
         } catch (Exception e) {
             Log.e(LOGTAG, "Exception when configuring instance");
             e.printStackTrace();
+            return false;
         }
 
         // Get service provider IP address
@@ -137,7 +196,72 @@ public class TvClient {
         } catch (Exception e) {
             Log.e(LOGTAG, "Failed to get service provider IP address");
             e.printStackTrace();
+            return false;
+        }
+
+        saveProfile();
+        return true;
+    }
+
+
+    /**
+     * Revalidate profile in background
+     * <p>
+     * The new profile is fetched by a separate instance and only persisted, so this instance
+     * keeps serving the cached one.
+     */
+    private void revalidateProfile() {
+        final TvClient client = new TvClient(prefs, requestQueue);
+        new Thread("ProfileRevalidation") {
+            @Override
+            public void run() {
+                Log.d(LOGTAG, "Revalidating expired profile");
+                if (!client.configureInstance()) {
+                    Log.w(LOGTAG, "Failed to revalidate profile, keeping expired one");
+                }
+            }
+        }.start();
+    }
+
+
+    /**
+     * Load persisted profile
+     * @return Whether a complete profile was found
+     */
+    private boolean loadProfile() {
+        String entrypoint = prefs.getString(PROFILE_KEY_PREFIX + "dvbEntrypoint", null);
+        String provider = prefs.getString(PROFILE_KEY_PREFIX + "serviceProvider", null);
+        String packages = prefs.getString(PROFILE_KEY_PREFIX + "tvPackages", null);
+        if (entrypoint == null || provider == null || packages == null) {
+            return false;
         }
+
+        dvbEntrypoint = entrypoint;
+        serviceProvider = provider;
+        demarcation = prefs.getInt(PROFILE_KEY_PREFIX + "demarcation", 0);
+        tvPackages = Arrays.asList(packages.split("\\|"));
+        resBaseUri = prefs.getString(PROFILE_KEY_PREFIX + "resBaseUri", "");
+        tvChannelLogoPath = prefs.getString(PROFILE_KEY_PREFIX + "tvChannelLogoPath", "");
+        tvCoversPath = prefs.getString(PROFILE_KEY_PREFIX + "tvCoversPath", "");
+        Log.d(LOGTAG, "Loaded persisted profile, service provider at " + serviceProvider);
+        return true;
+    }
+
+
+    /**
+     * Save profile
+     */
+    private void saveProfile() {
+        prefs.edit()
+                .putString(PROFILE_KEY_PREFIX + "dvbEntrypoint", dvbEntrypoint)
+                .putString(PROFILE_KEY_PREFIX + "serviceProvider", serviceProvider)
+                .putInt(PROFILE_KEY_PREFIX + "demarcation", demarcation)
+                .putString(PROFILE_KEY_PREFIX + "tvPackages", TextUtils.join("|", tvPackages))
+                .putString(PROFILE_KEY_PREFIX + "resBaseUri", resBaseUri)
+                .putString(PROFILE_KEY_PREFIX + "tvChannelLogoPath", tvChannelLogoPath)
+                .putString(PROFILE_KEY_PREFIX + "tvCoversPath", tvCoversPath)
+                .putLong(PROFILE_TIME_KEY, System.currentTimeMillis())
+                .apply();
     }
 
 
@@ -145,200 +269,217 @@ public class TvClient {
      * Get channels list
      * @return List of channels
      */
-    public ArrayList<JSONObject> getChannelsList() throws Exception {
+    public ArrayList<ChannelInfo> getChannelsList() throws Exception {
         // Get data from service provider
         UdpClient socket = new UdpClient(serviceProvider);
-        String[] res = socket.download();
-
-        // Extract XML documents from downloaded data
-        Document serviceList = null;
-        Document packageDiscovery = null;
-        Document epgDiscovery = null;
-        for (int i=0; i<res.length; i++) {
-            res[i] = res[i].split("</ServiceDiscovery>", 2)[0];
-            res[i] += "</ServiceDiscovery>";
-            if (res[i].contains("</ServiceList>")) {
-                serviceList = parseXmlString(res[i]);
-            } else if (res[i].contains("</PackageDiscovery>")) {
-                packageDiscovery = parseXmlString(res[i]);
-            } else if (res[i].contains("</BCGDiscovery>")) {
-                epgDiscovery = parseXmlString(res[i]);
+        ServiceDiscovery discovery = new ServiceDiscovery();
+        for (CarouselFile file : socket.downloadRaw().values()) {
+            try {
+                ServiceDiscoveryParser.parse(file.getData(), file.getLength(), discovery);
+            } catch (XmlPullParserException e) {
+                Log.w(LOGTAG, "Skipping malformed service discovery file " + file.getKey());
+                e.printStackTrace();
             }
-            res[i] = null;
+            file.releaseData();
         }
+        return parseChannelsList(discovery);
+    }
 
-        // Extract EPG entrypoints (for later)
-        if (epgDiscovery == null) {
-            Log.w(LOGTAG, "Invalid EPG discovery response");
-        } else {
-            saveEpgEntrypoints(epgDiscovery);
-        }
 
-        // Generate array of services (channel data)
-        SparseArray<Element> services = new SparseArray<>();
-        NodeList serviceNodes = serviceList.getElementsByTagName("SingleService");
-        for (int i=0; i<serviceNodes.getLength(); i++) {
-            Element elem = (Element) serviceNodes.item(i);
-            Element ti = (Element) elem.getElementsByTagName("TextualIdentifier").item(0);
-            int serviceName = Integer.parseInt(ti.getAttribute("ServiceName"));
-            services.put(serviceName, elem);
+    /**
+     * Parse channels list
+     * @param  discovery Service discovery data from service provider
+     * @return           List of channels
+     */
+    @VisibleForTesting
+    public ArrayList<ChannelInfo> parseChannelsList(ServiceDiscovery discovery) throws Exception {
+        if (!discovery.hasServiceList() || !discovery.hasPackageDiscovery()) {
+            throw new Exception("Invalid service discovery response");
         }
 
-        // Generate array of service names (list of dials)
-        SparseIntArray serviceNames = new SparseIntArray();
-        NodeList packageNodes = packageDiscovery.getElementsByTagName("Package");
-        for (int i=0; i<packageNodes.getLength(); i++) {
-            Element elem = (Element) packageNodes.item(i);
-            String name = elem.getElementsByTagName("PackageName").item(0).getTextContent();
-            if (!tvPackages.contains(name)) continue;
-
-            NodeList childNodes = elem.getElementsByTagName("Service");
-            for (int j=0; j<childNodes.getLength(); j++) {
-                Element child = (Element) childNodes.item(j);
-                Element textualID = (Element) child.getElementsByTagName("TextualID").item(0);
-                int serviceName = Integer.parseInt(textualID.getAttribute("ServiceName"));
-                int dial = Integer.parseInt(
-                        child.getElementsByTagName("LogicalChannelNumber")
-                                .item(0)
-                                .getTextContent()
-                );
-                serviceNames.put(dial, serviceName);
-            }
+        // Extract EPG entrypoints (for later)
+        if (discovery.hasBcgDiscovery()) {
+            saveEpgEntrypoints(discovery.getEpgEntrypoints());
+        } else {
+            Log.w(LOGTAG, "Invalid EPG discovery response");
         }
 
         // Generate final channel list
-        ArrayList<JSONObject> channels = new ArrayList<>();
+        SparseIntArray serviceNames = discovery.getDials(tvPackages);
+        ArrayList<ChannelInfo> channels = new ArrayList<>(serviceNames.size());
         for (int i=0; i<serviceNames.size(); i++) {
-            Log.d(LOGTAG, "Parsing channel #" + i + " out of " + serviceNames.size());
             int dial = serviceNames.keyAt(i);
-            int serviceName = serviceNames.get(dial);
-            Element service = services.get(serviceName);
-            Element info = (Element) service.getElementsByTagName("SI").item(0);
-
-            int epgServiceName = serviceName;
-            NodeList replacements = service.getElementsByTagName("ReplacementService");
-            if (replacements.getLength() > 0) {
-                Element replacement = (Element) replacements.item(0);
-                replacement = (Element) replacement.getElementsByTagName("TextualIdentifier").item(0);
-                epgServiceName = Integer.parseInt(replacement.getAttribute("ServiceName"));
+            int serviceName = serviceNames.valueAt(i);
+            ServiceDiscovery.Service service = discovery.getService(serviceName);
+            if (service == null) {
+                Log.w(LOGTAG, "Found unknown service " + serviceName + " at dial " + dial);
+                continue;
             }
-
-            Element location = (Element) service.getElementsByTagName("ServiceLocation").item(0);
-            location = (Element) location.getElementsByTagName("IPMulticastAddress").item(0);
-            if (location == null) {
+            if (service.address == null) {
                 Log.w(LOGTAG, "Found channel without IP Address at dial " + dial);
                 continue;
             }
-            String address = location.getAttribute("Address") + ":" + location.getAttribute("Port");
-
-            String name = info.getElementsByTagName("Name").item(0).getTextContent();
-            String shortName = info.getElementsByTagName("ShortName").item(0).getTextContent();
-            String desc = info.getElementsByTagName("Description").item(0).getTextContent();
-
-            Element ti = (Element) service.getElementsByTagName("TextualIdentifier").item(0);
-            String logoUri = resBaseUri + tvChannelLogoPath + ti.getAttribute("logoURI");
-
-            JSONObject channel = new JSONObject();
-            channel.put("dial", dial);
-            channel.put("serviceName", serviceName);
-            channel.put("epgServiceName", epgServiceName);
-            channel.put("mCastAddress", address);
-            channel.put("name", name);
-            channel.put("shortName", shortName);
-            channel.put("description", desc);
-            channel.put("logoUri", logoUri);
-            channels.add(channel);
+
+            try {
+                int colon = service.address.lastIndexOf(':');
+                int address = ChannelInfo.parseAddress(service.address.substring(0, colon));
+                int port = Integer.parseInt(service.address.substring(colon + 1));
+                channels.add(new ChannelInfo(dial, serviceName, service.epgServiceName, address,
+                        port, service.name, service.shortName, service.description,
+                        resBaseUri + tvChannelLogoPath + service.logoUri));
+            } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+                Log.w(LOGTAG, "Found channel with invalid IP Address at dial " + dial);
+            }
         }
+        Log.d(LOGTAG, "Parsed " + channels.size() + " channels");
 
         return channels;
     }
 
 
     /**
-     * Parse XML string
-     * @param  xmlString XML string
-     * @return           DOM document
+     * Get EPG entrypoints inside the horizon
+     * @param  prefs Shared preferences
+     * @return       EPG entrypoints, one per day
      */
-    private Document parseXmlString(String xmlString) throws Exception {
-        DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-        InputStream stream = new ByteArrayInputStream(xmlString.getBytes(StandardCharsets.UTF_8));
-        Document doc = builder.parse(stream);
-        doc.getDocumentElement().normalize();
-        return doc;
+    @NonNull
+    private static List<String> getEpgHorizon(SharedPreferences prefs) {
+        ArrayList<String> res = new ArrayList<>();
+        int epgDays = prefs.getInt(EPG_DAYS_KEY, DEFAULT_EPG_DAYS);
+        for (String entrypoint : prefs.getString(EPG_ENTRYPOINT_KEY, "").split("\\|")) {
+            if (entrypoint.isEmpty()) continue;
+            if (epgDays > 0 && res.size() >= epgDays) break;
+            res.add(entrypoint);
+        }
+        return res;
     }
 
 
     /**
-     * Get EPG entrypoints
-     * @return EPG entrypoints
+     * Get EPG entrypoints inside the horizon, without bootstrapping a client
+     * @param  ctx Context
+     * @return     EPG entrypoints from the last bootstrap, one per day
      */
     @NonNull
-    private String[] getEpgEntrypoints() {
-        return prefs.getString(EPG_ENTRYPOINT_KEY, "").split("\\|");
+    public static List<String> getEpgHorizon(Context ctx) {
+        return getEpgHorizon(ctx.getApplicationContext()
+                .getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE));
     }
 
 
     /**
      * Save EPG entrypoints
-     * @param doc XML document
+     * @param epgEntrypoints EPG entrypoints, one per day
      */
-    private void saveEpgEntrypoints(Document doc) {
-        ArrayList<String> epgEntrypoints = new ArrayList<>();
-
-        NodeList epgNodes = doc.getElementsByTagName("DVBBINSTP");
-        for (int i=0; i<epgNodes.getLength(); i++) {
-            Element elem = (Element) epgNodes.item(i);
-
-            // Get EPG entrypoint address
-            String ipAddress = elem.getAttribute("Address");
-            String port = elem.getAttribute("Port");
-            epgEntrypoints.add(ipAddress + ":" + port);
-        }
-
-        // Persist in SharedPreferences
+    private void saveEpgEntrypoints(List<String> epgEntrypoints) {
         prefs.edit()
                 .putString(EPG_ENTRYPOINT_KEY, TextUtils.join("|", epgEntrypoints))
                 .apply();
     }
 
 
+    /**
+     * Set EPG horizon
+     * @param ctx  Context
+     * @param days Number of EPG days to download, zero to download every advertised day
+     */
+    public static void setEpgDays(Context ctx, int days) {
+        ctx.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+                .edit()
+                .putInt(EPG_DAYS_KEY, Math.max(0, days))
+                .apply();
+    }
+
+
+    /**
+     * Get EPG horizon
+     * @return Number of EPG days to download, zero to download every advertised day
+     */
+    public int getEpgDays() {
+        return prefs.getInt(EPG_DAYS_KEY, DEFAULT_EPG_DAYS);
+    }
+
+
     /**
      * Get EPG data
+     * <p>
+     * Carousels are received by one stage per entrypoint (a single selector thread when
+     * available), while completed files are parsed by a pool sized to the number of cores.
      * @return EPG data
      */
-    public SparseArray<ArrayList<JSONObject>> getEpgData() throws Exception {
-        String[] entrypoints = getEpgEntrypoints();
-
-        // Create and start EPG threads
-        int numOfWorkers = Math.min(MAX_EPG_DAYS, entrypoints.length);
-        EpgDownloader[] workers = new EpgDownloader[numOfWorkers];
-        for (int i=0; i<workers.length; i++) {
-            workers[i] = new EpgDownloader(entrypoints[i]);
-            workers[i].start();
-        }
-        for (int i=0; i<workers.length; i++) {
-            workers[i].join();
-        }
+    public EpgData getEpgData() throws Exception {
+        List<String> entrypoints = getEpgHorizon(prefs);
+        int numOfEntrypoints = entrypoints.size();
+        int numOfParseThreads = Math.max(1, Runtime.getRuntime().availableProcessors());
+        Log.d(LOGTAG, "Getting " + numOfEntrypoints + " EPG days using " + numOfParseThreads +
+                " parse threads");
+
+        ExecutorService parsePool = Executors.newFixedThreadPool(numOfParseThreads);
+        ExecutorService receivePool = null;
+        EpgStore.Builder res = new EpgStore.Builder();
+        try {
+            EpgDownloader[] downloaders = new EpgDownloader[numOfEntrypoints];
+            for (int i=0; i<downloaders.length; i++) {
+                downloaders[i] = new EpgDownloader(entrypoints.get(i), carouselCache, epgCache,
+                        parsePool, res);
+            }
 
-        // Extract data from threads
-        SparseArray<ArrayList<JSONObject>> res = new SparseArray<>();
-        for (int i=0; i<workers.length; i++) {
-            for (JSONObject epgFile : workers[i].getEpgFiles()) {
-                int epgServiceName = epgFile.getInt("epgServiceName");
-                ArrayList<JSONObject> programs = res.get(epgServiceName, null);
-                if (programs == null) {
-                    programs = new ArrayList<>();
-                    res.put(epgServiceName, programs);
+            // Receive all carousels from this thread when possible
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+                MulticastListener listener = new MulticastListener();
+                for (EpgDownloader downloader : downloaders) {
+                    downloader.attachTo(listener);
                 }
-                for (int j=0; j<epgFile.getJSONArray("programs").length(); j++) {
-                    JSONObject program = epgFile.getJSONArray("programs").getJSONObject(j);
-                    program.put("coverPath", getFullCoverPath(program.getInt("pId")));
-                    programs.add(program);
+                try {
+                    listener.listen();
+                } catch (Exception e) {
+                    Log.e(LOGTAG, "Failed to listen to EPG entrypoints");
+                    e.printStackTrace();
+                }
+            } else if (downloaders.length > 0) {
+                receivePool = Executors.newFixedThreadPool(downloaders.length);
+                for (final EpgDownloader downloader : downloaders) {
+                    receivePool.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            downloader.receive();
+                        }
+                    });
                 }
             }
+
+            // Wait for pending files to be parsed
+            ArrayList<String> completeEntrypoints = new ArrayList<>();
+            for (EpgDownloader downloader : downloaders) {
+                downloader.awaitCompletion();
+                if (downloader.isComplete()) {
+                    completeEntrypoints.add(downloader.getEntrypoint());
+                }
+            }
+
+            // Persist programs and serve them from disk
+            if (epgCache != null) {
+                epgCache.commit(entrypoints, completeEntrypoints);
+                return epgCache;
+            }
+        } finally {
+            parsePool.shutdown();
+            if (receivePool != null) {
+                receivePool.shutdown();
+            }
         }
 
-        return res;
+        return res.build();
+    }
+
+
+    /**
+     * Get cached EPG data
+     * @return EPG data from the last sync or NULL if not available
+     */
+    @Nullable
+    public EpgData getCachedEpgData() {
+        return epgCache;
     }
 
 
@@ -348,7 +489,7 @@ public class TvClient {
      * @return     Full cover path
      */
     @NonNull
-    private String getFullCoverPath(int pId) {
+    public String getFullCoverPath(int pId) {
         String pIdStr = pId + "";
         return resBaseUri + tvCoversPath + pIdStr.substring(0, 4) + "/" + pIdStr + ".jpg";
     }
@@ -1,28 +1,78 @@
 package tk.josemmo.movistartv.client;
 
+import android.os.Build;
 import android.util.Log;
 
-import java.io.ByteArrayOutputStream;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+import androidx.annotation.VisibleForTesting;
+
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.DatagramPacket;
+import java.net.Inet4Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.MulticastSocket;
-import java.util.ArrayList;
-import java.util.Arrays;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Collections;
+import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.TreeMap;
 
 public class UdpClient {
     private static final String LOGTAG = "MCAST-SOCKET";
-    private static final int INITIAL_EXTRA_ROUNDS = 5;
+    private static final int MAX_DATAGRAM_SIZE = 1500;
+    private static final int RECEIVE_BUFFER_SIZE = MAX_DATAGRAM_SIZE * 600;
+    private static final BufferPool BUFFER_POOL = new BufferPool(MAX_DATAGRAM_SIZE, 4096);
+
+    /**
+     * Receive engines
+     */
+    public enum Engine {
+        /** Blocking {@link MulticastSocket} reading into a single heap packet */
+        SOCKET,
+        /** NIO {@link DatagramChannel} reading into pooled direct buffers (API 24+) */
+        CHANNEL
+    }
+
+    /**
+     * Listener notified as soon as every chunk of a file has been received
+     */
+    public interface OnFileCompleteListener {
+        /**
+         * On file complete
+         * <p>
+         * Called from the receiving thread, so implementations should hand the file over to
+         * another thread instead of processing it in place. Complete files are never written
+         * again, so they can be safely read from any thread.
+         * @param file Complete file
+         */
+        void onFileComplete(CarouselFile file);
+    }
 
     private final String host;
     private final int port;
-    private final HashMap<String, ArrayList<byte[]>> files;
+    private final HashMap<String, CarouselFile> files;
+    private final HashMap<String, Integer> knownVersions;
+    private final HashMap<String, Integer> unchangedFiles;
+    private final HashMap<String, Integer> unchangedChunks;
+    private Engine engine;
+    private final CompletionPolicy completionPolicy;
+    private OnFileCompleteListener onFileCompleteListener = null;
+    private DatagramRecorder recorder = null;
+    private boolean probeOnly = false;
+    private boolean changesFound = false;
+    private volatile boolean cancelled = false;
+    private volatile Closeable receiver = null;
     private int downloadedChunks = 0;
     private int totalNumOfChunks = 0;
-    private int remainingExtraRounds = INITIAL_EXTRA_ROUNDS;
 
     /**
      * UdpClient constructor
@@ -33,6 +83,136 @@ public class UdpClient {
         this.host = parts[0];
         this.port = Integer.parseInt(parts[1]);
         this.files = new HashMap<>();
+        this.knownVersions = new HashMap<>();
+        this.unchangedFiles = new HashMap<>();
+        this.unchangedChunks = new HashMap<>();
+        this.engine = getDefaultEngine();
+        this.completionPolicy = new CarouselCyclePolicy();
+    }
+
+
+    /**
+     * Get target
+     * @return Target formatted in host:port
+     */
+    public String getTarget() {
+        return host + ":" + port;
+    }
+
+
+    /**
+     * Get default engine for this device
+     * @return Fastest engine supported by the running platform
+     */
+    public static Engine getDefaultEngine() {
+        return (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) ? Engine.CHANNEL : Engine.SOCKET;
+    }
+
+
+    /**
+     * Set receive engine
+     * @param  engine Receive engine
+     * @return        This instance
+     */
+    public UdpClient setEngine(Engine engine) {
+        if (engine == Engine.CHANNEL && Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+            Log.w(LOGTAG, "Multicast channels require API 24, falling back to socket engine");
+            engine = Engine.SOCKET;
+        }
+        this.engine = engine;
+        return this;
+    }
+
+
+    /**
+     * Set on file complete listener
+     * @param  listener Listener or NULL to disable notifications
+     * @return          This instance
+     */
+    public UdpClient setOnFileCompleteListener(@Nullable OnFileCompleteListener listener) {
+        this.onFileCompleteListener = listener;
+        return this;
+    }
+
+
+    /**
+     * Set known file versions
+     * <p>
+     * Chunks of files whose version matches the known one are dropped, and the download ends
+     * once all changed files are complete. Skipped files are reported by
+     * {@link #getUnchangedFiles()}.
+     * @param  versions Map of file keys (type-id) to versions from a previous download
+     * @return          This instance
+     */
+    public UdpClient setKnownVersions(Map<String, Integer> versions) {
+        knownVersions.clear();
+        knownVersions.putAll(versions);
+        return this;
+    }
+
+
+    /**
+     * Get unchanged files
+     * @return Map of file keys (type-id) to versions of files skipped during the download
+     */
+    public HashMap<String, Integer> getUnchangedFiles() {
+        return unchangedFiles;
+    }
+
+
+    /**
+     * Set probe mode
+     * <p>
+     * In probe mode no file is downloaded. Only the headers of the chunks are read, and
+     * receiving stops at the first file whose version is not known or after one whole carousel
+     * cycle if all of them are. Known files missing from that cycle also count as changes. The
+     * result is reported by {@link #hasChanges()}.
+     * @param  probeOnly Whether to only probe versions
+     * @return           This instance
+     */
+    public UdpClient setProbeOnly(boolean probeOnly) {
+        this.probeOnly = probeOnly;
+        return this;
+    }
+
+
+    /**
+     * Has changes
+     * @return Whether the last probe found a file not matching the known versions
+     */
+    public boolean hasChanges() {
+        return changesFound;
+    }
+
+
+    /**
+     * Set datagram recorder
+     * @param  recorder Recorder which will receive a copy of every datagram or NULL to disable
+     * @return          This instance
+     */
+    public UdpClient setRecorder(@Nullable DatagramRecorder recorder) {
+        this.recorder = recorder;
+        return this;
+    }
+
+
+    /**
+     * Cancel download
+     * <p>
+     * Can be called from any thread. Closes the socket, so a blocked download throws an
+     * exception right away.
+     */
+    public void cancel() {
+        cancelled = true;
+        Closeable socket = receiver;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Log.e(LOGTAG, "Failed to close socket");
+                e.printStackTrace();
+            }
+        }
     }
 
 
@@ -46,88 +226,309 @@ public class UdpClient {
     }
 
 
+    /**
+     * Download data from a capture instead of the network
+     * @param  replayer Datagram replayer
+     * @return          Downloaded files
+     */
+    public String[] download(DatagramReplayer replayer) throws Exception {
+        replay(replayer);
+        return getFilesAsStrings();
+    }
+
+
     /**
      * Download raw data from socket
      * @return Downloaded files in raw data
      */
-    public TreeMap<String, byte[]> downloadRaw() throws Exception {
+    public TreeMap<String, CarouselFile> downloadRaw() throws Exception {
         startSocket();
         return getRawFiles();
     }
 
 
+    /**
+     * Download raw data from a capture instead of the network
+     * @param  replayer Datagram replayer
+     * @return          Downloaded files in raw data
+     */
+    public TreeMap<String, CarouselFile> downloadRaw(DatagramReplayer replayer) throws Exception {
+        replay(replayer);
+        return getRawFiles();
+    }
+
+
+    /**
+     * Replay capture
+     * @param  replayer Datagram replayer
+     * @throws IOException if the capture ran out before the download finished
+     */
+    private void replay(DatagramReplayer replayer) throws Exception {
+        DatagramReplayer.Stats stats = replayer.replayInto(this);
+        if (!stats.finished) {
+            throw new IOException("Capture ended before the carousel was complete (" +
+                    downloadedChunks + " out of " + totalNumOfChunks + " chunks)");
+        }
+    }
+
+
     /**
      * Start socket
      */
     private void startSocket() throws Exception {
-        byte[] buffer = new byte[1500];
+        if (engine == Engine.CHANNEL && Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            receiveFromChannel();
+        } else {
+            receiveFromSocket();
+        }
+    }
+
+
+    /**
+     * Receive datagrams using a blocking multicast socket
+     */
+    private void receiveFromSocket() throws Exception {
+        byte[] buffer = new byte[MAX_DATAGRAM_SIZE];
         DatagramPacket dgram = new DatagramPacket(buffer, buffer.length);
         MulticastSocket socket = new MulticastSocket(port);
-        Log.d(LOGTAG, "Default buffer size is " + socket.getReceiveBufferSize());
-        socket.setReceiveBufferSize(buffer.length * 600);
-        Log.d(LOGTAG, "New buffer size is " + socket.getReceiveBufferSize());
+        try {
+            setReceiver(socket);
+            Log.d(LOGTAG, "Default buffer size is " + socket.getReceiveBufferSize());
+            socket.setReceiveBufferSize(RECEIVE_BUFFER_SIZE);
+            Log.d(LOGTAG, "New buffer size is " + socket.getReceiveBufferSize());
+            InetAddress mcastAddr = InetAddress.getByName(host);
+            socket.joinGroup(mcastAddr);
+
+            boolean finished = false;
+            while (!finished) {
+                dgram.setLength(buffer.length);
+                socket.receive(dgram);
+                finished = parseChunk(ByteBuffer.wrap(buffer, 0, dgram.getLength()));
+            }
+
+            socket.leaveGroup(mcastAddr);
+        } finally {
+            receiver = null;
+            socket.close();
+        }
+    }
+
+
+    /**
+     * Receive datagrams using a NIO channel
+     * <p>
+     * Every datagram is read into a pooled direct buffer, which goes back to the pool as soon
+     * as its payload has been written into the file being reassembled.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.N)
+    private void receiveFromChannel() throws Exception {
+        DatagramChannel channel = openChannel();
+        try {
+            setReceiver(channel);
+            boolean finished = false;
+            while (!finished) {
+                ByteBuffer buffer = BUFFER_POOL.acquire();
+                channel.receive(buffer);
+                buffer.flip();
+                finished = parseChunk(buffer);
+                BUFFER_POOL.release(buffer);
+            }
+        } finally {
+            receiver = null;
+            channel.close();
+        }
+    }
+
+
+    /**
+     * Set receiving socket
+     * @param  socket Socket which can be closed to cancel the download
+     * @throws InterruptedIOException if the download has already been cancelled
+     */
+    private void setReceiver(Closeable socket) throws InterruptedIOException {
+        receiver = socket;
+        if (cancelled) {
+            throw new InterruptedIOException("Download cancelled");
+        }
+    }
+
+
+    /**
+     * Open multicast channel
+     * <p>
+     * The channel is bound to the group address instead of the wildcard one, so datagrams sent
+     * to other groups on the same port never reach it. Closing the channel leaves the group.
+     * @return Blocking channel joined to the multicast group of this instance
+     */
+    @RequiresApi(api = Build.VERSION_CODES.N)
+    DatagramChannel openChannel() throws IOException {
         InetAddress mcastAddr = InetAddress.getByName(host);
-        socket.joinGroup(mcastAddr);
+        NetworkInterface iface = findMulticastInterface();
+        if (iface == null) {
+            throw new IOException("No network interface available for multicast");
+        }
 
-        boolean finished = false;
-        while (!finished) {
-            socket.receive(dgram);
-            finished = parseChunk(dgram.getData());
+        DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        try {
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+            Log.d(LOGTAG, "Channel buffer size is " +
+                    channel.getOption(StandardSocketOptions.SO_RCVBUF));
+            channel.bind(new InetSocketAddress(mcastAddr, port));
+            channel.join(mcastAddr, iface);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
         }
+        return channel;
+    }
+
 
-        socket.leaveGroup(mcastAddr);
-        socket.close();
+    /**
+     * Acquire receive buffer
+     * @return Direct buffer big enough for any datagram
+     */
+    static ByteBuffer acquireBuffer() {
+        return BUFFER_POOL.acquire();
+    }
+
+
+    /**
+     * Release receive buffer
+     * @param buffer Buffer returned by {@link #acquireBuffer()}
+     */
+    static void releaseBuffer(ByteBuffer buffer) {
+        BUFFER_POOL.release(buffer);
+    }
+
+
+    /**
+     * Find network interface for joining multicast groups
+     * @return Network interface or NULL if none is available
+     */
+    @Nullable
+    static NetworkInterface findMulticastInterface() throws IOException {
+        Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+        if (interfaces == null) return null;
+        for (NetworkInterface iface : Collections.list(interfaces)) {
+            if (!iface.isUp() || iface.isLoopback() || !iface.supportsMulticast()) continue;
+            for (InetAddress addr : Collections.list(iface.getInetAddresses())) {
+                if (addr instanceof Inet4Address) return iface;
+            }
+        }
+        return null;
     }
 
 
     /**
      * Parse chunk of data
-     * @param  b Chunk bytes
+     * @param  b Chunk bytes, from position zero up to the buffer limit
      * @return   Finished downloading all chunks
      */
-    private boolean parseChunk(byte[] b) {
-        int fileType = b[4] & 0xff;
-        int fileId = ((b[5] & 0xff) << 8) | (b[6] & 0xff);
-        int chunkIndex = (((b[8] & 0xff) << 8) | (b[9] & 0xff)) / 0x10;
-        int numOfChunks = (((b[9] & 0x0f) << 8) | (b[10] & 0xff)) + 1;
+    @VisibleForTesting
+    public boolean parseChunk(ByteBuffer b) {
+        if (recorder != null) {
+            try {
+                recorder.record(b);
+            } catch (IOException e) {
+                Log.e(LOGTAG, "Failed to record datagram, recording stopped");
+                recorder = null;
+            }
+        }
+
+        if (b.limit() <= 12) {
+            Log.d(LOGTAG, "Ignoring bad chunk (too short)");
+            return false;
+        }
+
+        int fileType = b.get(4) & 0xff;
+        int fileId = ((b.get(5) & 0xff) << 8) | (b.get(6) & 0xff);
+        int version = b.get(7) & 0xff;
+        int chunkIndex = (((b.get(8) & 0xff) << 8) | (b.get(9) & 0xff)) / 0x10;
+        int numOfChunks = (((b.get(9) & 0x0f) << 8) | (b.get(10) & 0xff)) + 1;
         if (chunkIndex >= numOfChunks) {
             Log.e(LOGTAG, "Ignoring bad chunk (" + chunkIndex + " out of " + numOfChunks +")");
             return false;
         }
 
-        // Extract payload
-        int endOfPayload = b.length - 1;
-        while (b[endOfPayload] == 0x00) {
-            --endOfPayload;
+        // Extract payload (only the last chunk of a file is padded)
+        int endOfPayload = b.limit() - 1;
+        if (chunkIndex == numOfChunks-1) {
+            while (endOfPayload > 12 && b.get(endOfPayload) == 0x00) {
+                --endOfPayload;
+            }
         }
         if (endOfPayload <= 12) {
             Log.d(LOGTAG, "Ignoring bad chunk (corrupted data)");
             return false;
         }
-        byte[] payload = Arrays.copyOfRange(b, 12, endOfPayload+1);
+        b.limit(endOfPayload+1).position(12);
 
-        // Save to memory
+        // Skip files which have not changed since the previous download, counting their chunks
+        // as downloaded so the completion policy still sees the real size of the carousel
         String key = fileType + "-" + fileId;
-        ArrayList<byte[]> fileChunks;
-        if (files.containsKey(key)) {
-            fileChunks = files.get(key);
-        } else {
-            fileChunks = new ArrayList<>();
-            for (int i=0; i<numOfChunks; ++i) fileChunks.add(new byte[] {});
-            files.put(key, fileChunks);
+        Integer knownVersion = knownVersions.get(key);
+        if (knownVersion != null && knownVersion == version) {
+            if (!unchangedFiles.containsKey(key)) {
+                Log.d(LOGTAG, "Skipping unchanged file " + key + " (version " + version + ")");
+                unchangedFiles.put(key, version);
+                unchangedChunks.put(key, numOfChunks);
+                totalNumOfChunks += numOfChunks;
+                downloadedChunks += numOfChunks;
+            }
+            boolean finished = completionPolicy.isFinished(fileType, fileId, chunkIndex,
+                    downloadedChunks, totalNumOfChunks);
+            if (finished && probeOnly && unchangedFiles.size() < knownVersions.size()) {
+                Log.d(LOGTAG, "Some known files are no longer in the carousel");
+                changesFound = true;
+            }
+            return finished;
+        }
+
+        // A skipped file got a new version in the middle of the download
+        Integer skippedChunks = unchangedChunks.remove(key);
+        if (skippedChunks != null) {
+            Log.d(LOGTAG, "Skipped file " + key + " has changed, downloading it");
+            unchangedFiles.remove(key);
+            totalNumOfChunks -= skippedChunks;
+            downloadedChunks -= skippedChunks;
+        }
+
+        // In probe mode, a single changed file is enough to tell the carousel has changed
+        if (probeOnly) {
+            Log.d(LOGTAG, "Found changed file " + key + " (version " + version + ")");
+            changesFound = true;
+            return true;
+        }
+
+        // Save to memory (complete files are kept even if a newer version shows up)
+        CarouselFile file = files.get(key);
+        boolean hasChanged = (file != null) && !file.isComplete() &&
+                (file.getNumOfChunks() != numOfChunks || file.getVersion() != version);
+        if (file == null || hasChanged) {
+            if (file != null) {
+                Log.d(LOGTAG, "File " + key + " has changed, starting over");
+                totalNumOfChunks -= file.getNumOfChunks();
+                downloadedChunks -= file.getNumOfReceivedChunks();
+            }
+            file = new CarouselFile(fileType, fileId, version, numOfChunks);
+            files.put(key, file);
             totalNumOfChunks += numOfChunks;
-            remainingExtraRounds = INITIAL_EXTRA_ROUNDS;
         }
-        if (fileChunks.get(chunkIndex).length == 0) {
-            ++downloadedChunks;
+        int receivedBefore = file.getNumOfReceivedChunks();
+        if (file.putChunk(chunkIndex, b)) {
+            // The file may roll back a pending last chunk, so it is the only source of truth
+            downloadedChunks += file.getNumOfReceivedChunks() - receivedBefore;
             Log.d(LOGTAG, "Downloaded " + downloadedChunks +
                     " out of " + totalNumOfChunks + " chunks");
+            if (onFileCompleteListener != null && file.isComplete()) {
+                onFileCompleteListener.onFileComplete(file);
+            }
         }
-        fileChunks.set(chunkIndex, payload);
 
         // Have we finished downloading all files?
-        if (downloadedChunks == totalNumOfChunks) {
-            if (--remainingExtraRounds > 0) return false;
+        if (completionPolicy.isFinished(fileType, fileId, chunkIndex, downloadedChunks,
+                totalNumOfChunks)) {
             Log.d(LOGTAG, "Finished downloading chunks for all files");
             return true;
         }
@@ -140,16 +541,12 @@ public class UdpClient {
      * Get downloaded files as Strings
      * @return Downloaded files as Strings
      */
-    private String[] getFilesAsStrings() throws IOException {
+    private String[] getFilesAsStrings() {
         String[] res = new String[files.size()];
 
         int i = 0;
-        for (ArrayList<byte[]> chunks : files.values()) {
-            ByteArrayOutputStream output = new ByteArrayOutputStream();
-            for (byte[] chunk : chunks) {
-                output.write(chunk);
-            }
-            res[i] = output.toString();
+        for (CarouselFile file : files.values()) {
+            res[i] = file.getString();
             i++;
         }
 
@@ -160,20 +557,8 @@ public class UdpClient {
      * Get downloaded raw files
      * @return Download files as raw bytes
      */
-    private TreeMap<String,byte[]> getRawFiles() throws IOException {
-        TreeMap<String,byte[]> res = new TreeMap<>();
-
-        for (Map.Entry<String,ArrayList<byte[]>> entry : files.entrySet()) {
-            String filename = entry.getKey();
-            ArrayList<byte[]> chunks = entry.getValue();
-            ByteArrayOutputStream output = new ByteArrayOutputStream();
-            for (byte[] chunk : chunks) {
-                output.write(chunk);
-            }
-            res.put(filename, output.toByteArray());
-        }
-
-        return res;
+    TreeMap<String,CarouselFile> getRawFiles() {
+        return new TreeMap<>(files);
     }
 
 }
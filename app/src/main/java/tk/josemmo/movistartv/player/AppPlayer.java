@@ -19,52 +19,105 @@ package tk.josemmo.movistartv.player;
 import android.content.Context;
 import android.content.res.Resources;
 import android.media.PlaybackParams;
+import android.media.tv.TvInputManager;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.DisplayMetrics;
+import android.util.Log;
 import android.view.Surface;
 
+import androidx.annotation.Nullable;
+
 import com.google.android.media.tv.companionlibrary.TvPlayer;
 
-import org.videolan.libvlc.LibVLC;
 import org.videolan.libvlc.Media;
 import org.videolan.libvlc.MediaPlayer;
+import org.videolan.libvlc.interfaces.IMedia;
 import org.videolan.libvlc.interfaces.IVLCVout;
 
-import java.util.ArrayList;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * A wrapper around ExoPlayer which implements TvPlayer. This is the class that actually renders
  * the video, subtitles and all these sorts of things.
  */
 public class AppPlayer implements TvPlayer {
-    private LibVLC libVlc;
+    private static final String LOGTAG = "AppPlayer";
+    private static final long VOUT_TIMEOUT_MS = 3000;
+    private final VlcPool pool;
     private MediaPlayer player;
+    private Surface surface = null;
+    private int volume = 100;
+    private final CopyOnWriteArrayList<TvPlayer.Callback> callbacks = new CopyOnWriteArrayList<>();
+    private TuneStats.Trace trace = null;
+    private boolean hasVideo = false;
+    private boolean hasDetachedVideo = false;
+    private boolean isBuffering = false;
+    private float lastBuffering = 0;
+    private final DecoderProfiles profiles;
+    private final NetworkCaching networkCaching;
+    private boolean hasProbed = false;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private DecoderProfiles.Monitor monitor = null;
+    private Uri mediaUri = null;
+
+    /**
+     * Callback which also receives video availability changes
+     */
+    public abstract static class Callback extends TvPlayer.Callback {
+        /**
+         * On video available, called once the first frame has been rendered
+         */
+        public void onVideoAvailable() {}
+
+        /**
+         * On video unavailable
+         * @param reason Reason, one of TvInputManager.VIDEO_UNAVAILABLE_REASON_*
+         */
+        public void onVideoUnavailable(int reason) {}
+    }
+
+    private final Runnable statsChecker = new Runnable() {
+        @Override
+        public void run() {
+            checkStats();
+        }
+    };
+
+    private final Runnable voutChecker = new Runnable() {
+        @Override
+        public void run() {
+            checkVout();
+        }
+    };
+
+    private final MediaPlayer.EventListener eventListener = new MediaPlayer.EventListener() {
+        @Override
+        public void onEvent(MediaPlayer.Event event) {
+            handleEvent(event);
+        }
+    };
 
     /**
      * AppPlayer constructor
      * @param context Context
      */
     public AppPlayer(Context context) {
-        ArrayList<String> options = new ArrayList<>();
-        options.add("-vvv");
-
-        // Stream-related options
-        options.add("--http-reconnect");
-        options.add("--clock-jitter=0");
-        options.add("--clock-synchro=0");
-
-        // Speed-up decoding in low-end devices
-        options.add("--avcodec-hurry-up");
-        options.add("--avcodec-skiploopfilter=4");
-        options.add("--avcodec-skip-idct=4");
-        options.add("--avcodec-fast");
+        profiles = new DecoderProfiles(context);
+        networkCaching = new NetworkCaching(context);
+        pool = VlcPool.acquire(context);
+        player = pool.obtainPlayer();
+        player.setEventListener(eventListener);
+    }
 
-        // Enable deinterlacing
-        options.add("--deinterlace=1");
-        options.add("--deinterlace-mode=yadif");
 
-        libVlc = new LibVLC(context, options);
-        player = new MediaPlayer(libVlc);
+    /**
+     * Set tune trace
+     * @param trace Trace for the next media to load or NULL to stop tracing
+     */
+    public void setTuneTrace(@Nullable TuneStats.Trace trace) {
+        this.trace = trace;
     }
 
 
@@ -82,19 +135,274 @@ public class AppPlayer implements TvPlayer {
      * @param mediaUri Media URI
      */
     public void loadMedia(Uri mediaUri) {
-        final Media media = new Media(libVlc, mediaUri);
-        media.setHWDecoderEnabled(true, false);
+        DecoderProfile profile = profiles.getProfile(mediaUri.toString());
+        loadMedia(mediaUri, profile);
+        if (trace != null) {
+            trace.onLoad();
+        }
+    }
+
+
+    /**
+     * Load media
+     * @param mediaUri Media URI
+     * @param profile  Decoder profile
+     */
+    private void loadMedia(Uri mediaUri, DecoderProfile profile) {
+        final Media media = new Media(pool.getLibVlc(), mediaUri);
+        profile.applyTo(media);
+        networkCaching.applyTo(media);
         player.setMedia(media);
         media.release();
+
+        handler.removeCallbacks(voutChecker);
+        hasDetachedVideo = false;
+        hasVideo = false;
+        isBuffering = false;
+        lastBuffering = 0;
+        startMonitor(mediaUri, profile);
+    }
+
+
+    /**
+     * Start decoder monitor
+     * @param mediaUri Media URI
+     * @param profile  Decoder profile the media was loaded with
+     */
+    private void startMonitor(Uri mediaUri, DecoderProfile profile) {
+        this.mediaUri = mediaUri;
+        hasProbed = false;
+        monitor = profiles.newMonitor(mediaUri.toString(), profile);
+        handler.removeCallbacks(statsChecker);
+        handler.postDelayed(statsChecker, DecoderProfiles.CHECK_INTERVAL_MS);
+    }
+
+
+    /**
+     * Stop decoder monitor
+     */
+    private void stopMonitor() {
+        handler.removeCallbacks(statsChecker);
+        monitor = null;
+    }
+
+
+    /**
+     * Check decoder statistics
+     * <p>
+     * Reloads the current media with a cheaper profile when too many pictures are being lost.
+     */
+    private void checkStats() {
+        if (monitor == null) return;
+        handler.postDelayed(statsChecker, DecoderProfiles.CHECK_INTERVAL_MS);
+        if (!player.isPlaying()) return;
+
+        IMedia media = player.getMedia();
+        if (media == null) return;
+        IMedia.Stats stats = media.getStats();
+        media.release();
+        if (stats == null) return;
+
+        DecoderProfile cheaper = monitor.onStats(stats.displayedPictures, stats.lostPictures);
+        if (cheaper != null) {
+            Log.d(LOGTAG, "Reloading " + mediaUri + " with profile " + cheaper);
+            loadMedia(mediaUri, cheaper);
+            player.play();
+        }
+    }
+
+
+    /**
+     * Check video output of adopted player
+     * <p>
+     * Reloads the current media if re-enabling video did not bring up a video output.
+     */
+    private void checkVout() {
+        if (hasVideo || mediaUri == null) return;
+        Log.w(LOGTAG, "No video output after adopting player, reloading " + mediaUri);
+        loadMedia(mediaUri, profiles.getProfile(mediaUri.toString()));
+        player.play();
+    }
+
+
+    /**
+     * Adopt player
+     * <p>
+     * Replaces the current media player with one which is already playing, moving the video
+     * surface and volume to it. The previous player is returned to the shared pool.
+     * <p>
+     * The adopted player was playing without surface and with its video track disabled, so video
+     * is enabled again once the surface is attached and comes with the next key frame.
+     * @param other    Player obtained from the shared pool
+     * @param mediaUri Media URI the player is playing
+     */
+    public void adoptPlayer(MediaPlayer other, String mediaUri) {
+        MediaPlayer previous = player;
+        if (surface != null) {
+            previous.getVLCVout().detachViews();
+        }
+        previous.setEventListener(null);
+        player = other;
+        player.setVolume(volume);
+        player.setEventListener(eventListener);
+        pool.recyclePlayer(previous);
+        Uri uri = Uri.parse(mediaUri);
+        startMonitor(uri, profiles.getProfile(mediaUri));
+
+        // Adopted player has already buffered, but video only starts after attaching the surface
+        handler.removeCallbacks(voutChecker);
+        hasDetachedVideo = true;
+        if (surface != null) {
+            setSurface(surface);
+        }
+        hasVideo = false;
+        isBuffering = false;
+        lastBuffering = 100;
+        if (trace != null) {
+            trace.onLoad();
+        }
+        if (player.isPlaying()) {
+            for (TvPlayer.Callback callback : callbacks) {
+                callback.onStarted();
+            }
+        }
+    }
+
+
+    /**
+     * Handle player event
+     * @param event Player event
+     */
+    private void handleEvent(MediaPlayer.Event event) {
+        switch (event.type) {
+            case MediaPlayer.Event.Opening:
+                hasVideo = false;
+                dispatchVideoUnavailable(TvInputManager.VIDEO_UNAVAILABLE_REASON_TUNING);
+                break;
+            case MediaPlayer.Event.Buffering:
+                lastBuffering = event.getBuffering();
+                if (lastBuffering < 100) {
+                    if (hasVideo && !isBuffering) {
+                        isBuffering = true;
+                        networkCaching.onStall();
+                        dispatchVideoUnavailable(TvInputManager.VIDEO_UNAVAILABLE_REASON_BUFFERING);
+                    }
+                } else {
+                    if (trace != null) {
+                        trace.onSteady();
+                    }
+                    if (hasVideo) {
+                        probeNetwork();
+                    }
+                    if (isBuffering) {
+                        isBuffering = false;
+                        dispatchVideoAvailable();
+                    }
+                }
+                break;
+            case MediaPlayer.Event.Vout:
+                if (event.getVoutCount() > 0 && !hasVideo) {
+                    hasVideo = true;
+                    updateVideoHeight();
+                    if (trace != null) {
+                        trace.onFirstFrame();
+                        if (lastBuffering >= 100) trace.onSteady();
+                    }
+                    if (lastBuffering >= 100) {
+                        probeNetwork();
+                    }
+                    dispatchVideoAvailable();
+                }
+                break;
+            case MediaPlayer.Event.Playing:
+                for (TvPlayer.Callback callback : callbacks) {
+                    callback.onStarted();
+                }
+                break;
+            case MediaPlayer.Event.Paused:
+                for (TvPlayer.Callback callback : callbacks) {
+                    callback.onPaused();
+                }
+                break;
+            case MediaPlayer.Event.EndReached:
+                for (TvPlayer.Callback callback : callbacks) {
+                    callback.onCompleted();
+                }
+                break;
+            case MediaPlayer.Event.EncounteredError:
+                Log.e(LOGTAG, "Player encountered an error");
+                if (trace != null) {
+                    trace.onError();
+                }
+                if (monitor != null) {
+                    monitor.onError();
+                }
+                hasVideo = false;
+                dispatchVideoUnavailable(TvInputManager.VIDEO_UNAVAILABLE_REASON_UNKNOWN);
+                break;
+        }
+    }
+
+
+    /**
+     * Probe network once playback is steady
+     */
+    private void probeNetwork() {
+        if (hasProbed || mediaUri == null) return;
+        hasProbed = true;
+        networkCaching.maybeProbe(mediaUri.toString());
+    }
+
+
+    /**
+     * Update video height of current media
+     */
+    private void updateVideoHeight() {
+        if (mediaUri == null) return;
+        IMedia.VideoTrack track = player.getCurrentVideoTrack();
+        if (track != null && track.height > 0) {
+            profiles.setVideoHeight(mediaUri.toString(), track.height);
+        }
+    }
+
+
+    /**
+     * Dispatch video available
+     */
+    private void dispatchVideoAvailable() {
+        for (TvPlayer.Callback callback : callbacks) {
+            if (callback instanceof Callback) {
+                ((Callback) callback).onVideoAvailable();
+            }
+        }
+    }
+
+
+    /**
+     * Dispatch video unavailable
+     * @param reason Reason
+     */
+    private void dispatchVideoUnavailable(int reason) {
+        for (TvPlayer.Callback callback : callbacks) {
+            if (callback instanceof Callback) {
+                ((Callback) callback).onVideoUnavailable(reason);
+            }
+        }
     }
 
 
     /**
      * Release player
+     * <p>
+     * The underlying media player is returned to the shared pool.
      */
     public void release() {
-        player.release();
-        libVlc.release();
+        callbacks.clear();
+        trace = null;
+        stopMonitor();
+        handler.removeCallbacks(voutChecker);
+        pool.recyclePlayer(player);
+        pool.release();
     }
 
 
@@ -104,13 +412,20 @@ public class AppPlayer implements TvPlayer {
      */
     @Override
     public void setSurface(Surface surface) {
+        this.surface = surface;
         final IVLCVout vlcVout = player.getVLCVout();
         if (surface != null) {
             DisplayMetrics dm = Resources.getSystem().getDisplayMetrics();
             vlcVout.setVideoSurface(surface, null);
             vlcVout.setWindowSize(dm.widthPixels, dm.heightPixels);
             vlcVout.attachViews();
+            if (hasDetachedVideo) {
+                hasDetachedVideo = false;
+                player.setVideoTrackEnabled(true);
+                handler.postDelayed(voutChecker, VOUT_TIMEOUT_MS);
+            }
         } else {
+            handler.removeCallbacks(voutChecker);
             vlcVout.detachViews();
         }
     }
@@ -158,6 +473,7 @@ public class AppPlayer implements TvPlayer {
      * Stop player
      */
     public void stop() {
+        stopMonitor();
         player.stop();
     }
 
@@ -180,7 +496,8 @@ public class AppPlayer implements TvPlayer {
      */
     @Override
     public void setVolume(float volume) {
-        player.setVolume((int) (volume * 100));
+        this.volume = (int) (volume * 100);
+        player.setVolume(this.volume);
     }
 
 
@@ -190,14 +507,22 @@ public class AppPlayer implements TvPlayer {
     }
 
 
+    /**
+     * Register callback
+     * @param callback Callback, an {@link AppPlayer.Callback} to also get video availability
+     */
     @Override
-    public void registerCallback(Callback callback) {
-        // This method is intentionally left blank
+    public void registerCallback(TvPlayer.Callback callback) {
+        callbacks.addIfAbsent(callback);
     }
 
 
+    /**
+     * Unregister callback
+     * @param callback Callback
+     */
     @Override
-    public void unregisterCallback(Callback callback) {
-        // This method is intentionally left blank
+    public void unregisterCallback(TvPlayer.Callback callback) {
+        callbacks.remove(callback);
     }
 }
\ No newline at end of file
@@ -0,0 +1,76 @@
+package tk.josemmo.movistartv.player;
+
+import androidx.annotation.Nullable;
+
+import org.videolan.libvlc.Media;
+
+/**
+ * Decoder profiles, sorted from highest quality to lowest decoding cost.
+ */
+public enum DecoderProfile {
+    /** Hardware decoding when available, full software decoding and yadif deinterlacing */
+    FULL_QUALITY,
+    /** Faster software decoding, skips loop filter on non-reference frames, blend deinterlacing */
+    FAST,
+    /** Drops frames and skips loop filter and IDCT on every frame, discard deinterlacing */
+    HURRY_UP,
+    /** Hardware decoding only, never falls back to software decoding */
+    HW_ONLY;
+
+    /**
+     * Apply profile to media
+     * @param media Media not yet loaded into a player
+     */
+    public void applyTo(Media media) {
+        switch (this) {
+            case FULL_QUALITY:
+                media.setHWDecoderEnabled(true, false);
+                media.addOption(":deinterlace=1");
+                media.addOption(":deinterlace-mode=yadif");
+                break;
+            case FAST:
+                media.setHWDecoderEnabled(true, false);
+                media.addOption(":avcodec-fast");
+                media.addOption(":avcodec-skiploopfilter=1");
+                media.addOption(":deinterlace=1");
+                media.addOption(":deinterlace-mode=blend");
+                break;
+            case HURRY_UP:
+                media.setHWDecoderEnabled(true, false);
+                media.addOption(":avcodec-fast");
+                media.addOption(":avcodec-hurry-up");
+                media.addOption(":avcodec-skiploopfilter=4");
+                media.addOption(":avcodec-skip-idct=4");
+                media.addOption(":deinterlace=1");
+                media.addOption(":deinterlace-mode=discard");
+                break;
+            case HW_ONLY:
+                media.setHWDecoderEnabled(true, true);
+                media.addOption(":codec=mediacodec_ndk,mediacodec_jni,none");
+                break;
+        }
+    }
+
+
+    /**
+     * Get cheaper profile
+     * @return Next profile with lower decoding cost or NULL if this is the cheapest
+     */
+    @Nullable
+    public DecoderProfile cheaper() {
+        int next = ordinal() + 1;
+        return (next < values().length) ? values()[next] : null;
+    }
+
+
+    /**
+     * Get better profile
+     * @return Previous profile with higher quality or NULL if this is the best
+     */
+    @Nullable
+    public DecoderProfile better() {
+        int prev = ordinal() - 1;
+        return (prev >= 0) ? values()[prev] : null;
+    }
+
+}
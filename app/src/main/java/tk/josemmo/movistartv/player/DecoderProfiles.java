@@ -0,0 +1,225 @@
+package tk.josemmo.movistartv.player;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Chooses and persists the decoder profile of this device for each channel resolution.
+ * <p>
+ * The device is probed once to pick a starting profile. During playback, the ratio of lost
+ * pictures is sampled periodically: sustained losses step the profile down right away, while
+ * a long period without losses steps it back up for the next tune.
+ */
+public class DecoderProfiles {
+    private static final String LOGTAG = "DecoderProfiles";
+    private static final String PREFS_NAME = "DecoderProfiles";
+    private static final String PROBED_PROFILE_KEY = "probedProfile";
+    private static final String PROFILE_KEY_PREFIX = "profile.";
+    private static final String RESOLUTION_KEY_PREFIX = "resolution.";
+    public static final long CHECK_INTERVAL_MS = 5000;
+    private static final int MIN_PICTURES_PER_CHECK = 25;
+    private static final double STEP_DOWN_LOST_RATIO = 0.05;
+    private static final double STEP_UP_LOST_RATIO = 0.002;
+    private static final int STEP_UP_STABLE_CHECKS = 60;
+
+    public static final int RESOLUTION_SD = 0;
+    public static final int RESOLUTION_HD = 1;
+    public static final int RESOLUTION_FHD = 2;
+    public static final int RESOLUTION_UHD = 3;
+
+    private final Context context;
+    private final SharedPreferences prefs;
+
+    /**
+     * Playback monitor for a single media
+     */
+    public class Monitor {
+        private final String mediaUri;
+        private final DecoderProfile profile;
+        private int lastDisplayed = 0;
+        private int lastLost = 0;
+        private int stableChecks = 0;
+
+        /**
+         * Monitor constructor
+         * @param mediaUri Media URI
+         * @param profile  Profile the media was loaded with
+         */
+        private Monitor(String mediaUri, DecoderProfile profile) {
+            this.mediaUri = mediaUri;
+            this.profile = profile;
+        }
+
+
+        /**
+         * On media statistics
+         * @param  displayed Total number of displayed pictures
+         * @param  lost      Total number of lost pictures
+         * @return           Cheaper profile to reload the media with or NULL to keep playing
+         */
+        @Nullable
+        public DecoderProfile onStats(int displayed, int lost) {
+            int displayedDelta = displayed - lastDisplayed;
+            int lostDelta = lost - lastLost;
+            lastDisplayed = displayed;
+            lastLost = lost;
+            if (displayedDelta < 0 || lostDelta < 0) return null;
+            if (displayedDelta + lostDelta < MIN_PICTURES_PER_CHECK) return null;
+
+            double lostRatio = (double) lostDelta / (displayedDelta + lostDelta);
+            int resolution = getResolution(mediaUri);
+            if (lostRatio > STEP_DOWN_LOST_RATIO) {
+                stableChecks = 0;
+                DecoderProfile cheaper = profile.cheaper();
+                if (cheaper != null) {
+                    Log.d(LOGTAG, "Lost " + Math.round(lostRatio * 100) + "% of pictures, " +
+                            "stepping down to " + cheaper);
+                    setProfile(resolution, cheaper);
+                }
+                return cheaper;
+            }
+
+            // Step up on next tune after a long stable period
+            stableChecks = (lostRatio < STEP_UP_LOST_RATIO) ? stableChecks + 1 : 0;
+            if (stableChecks == STEP_UP_STABLE_CHECKS) {
+                DecoderProfile better = profile.better();
+                if (better != null && getProfile(mediaUri) == profile) {
+                    Log.d(LOGTAG, "Playback has been stable, stepping up to " + better);
+                    setProfile(resolution, better);
+                }
+            }
+            return null;
+        }
+
+
+        /**
+         * On playback error
+         * <p>
+         * Hardware-only decoding might not be supported for this media, so the next tune falls
+         * back to the cheapest software profile.
+         */
+        public void onError() {
+            if (profile == DecoderProfile.HW_ONLY) {
+                Log.d(LOGTAG, "Playback failed with " + profile + ", falling back");
+                setProfile(getResolution(mediaUri), DecoderProfile.HURRY_UP);
+            }
+        }
+    }
+
+    /**
+     * DecoderProfiles constructor
+     * @param ctx Context
+     */
+    public DecoderProfiles(Context ctx) {
+        context = ctx.getApplicationContext();
+        prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+
+    /**
+     * Get profile
+     * @param  mediaUri Media URI
+     * @return          Profile for the last known resolution of that media
+     */
+    public DecoderProfile getProfile(String mediaUri) {
+        String name = prefs.getString(PROFILE_KEY_PREFIX + getResolution(mediaUri), null);
+        if (name != null) {
+            try {
+                return DecoderProfile.valueOf(name);
+            } catch (IllegalArgumentException e) {
+                Log.w(LOGTAG, "Ignoring unknown profile " + name);
+            }
+        }
+        return getProbedProfile();
+    }
+
+
+    /**
+     * New monitor
+     * @param  mediaUri Media URI
+     * @param  profile  Profile the media was loaded with
+     * @return          Playback monitor
+     */
+    public Monitor newMonitor(String mediaUri, DecoderProfile profile) {
+        return new Monitor(mediaUri, profile);
+    }
+
+
+    /**
+     * Set video height of media
+     * @param mediaUri Media URI
+     * @param height   Video height in pixels
+     */
+    public void setVideoHeight(String mediaUri, int height) {
+        int resolution;
+        if (height <= 576) {
+            resolution = RESOLUTION_SD;
+        } else if (height <= 720) {
+            resolution = RESOLUTION_HD;
+        } else if (height <= 1080) {
+            resolution = RESOLUTION_FHD;
+        } else {
+            resolution = RESOLUTION_UHD;
+        }
+        if (getResolution(mediaUri) != resolution) {
+            prefs.edit().putInt(RESOLUTION_KEY_PREFIX + mediaUri, resolution).apply();
+        }
+    }
+
+
+    /**
+     * Get resolution
+     * @param  mediaUri Media URI
+     * @return          Last known resolution class of media
+     */
+    private int getResolution(String mediaUri) {
+        return prefs.getInt(RESOLUTION_KEY_PREFIX + mediaUri, RESOLUTION_HD);
+    }
+
+
+    /**
+     * Set profile
+     * @param resolution Resolution class
+     * @param profile    Profile
+     */
+    private void setProfile(int resolution, DecoderProfile profile) {
+        prefs.edit().putString(PROFILE_KEY_PREFIX + resolution, profile.name()).apply();
+    }
+
+
+    /**
+     * Get probed profile
+     * @return Starting profile for this device, probed on first use
+     */
+    private DecoderProfile getProbedProfile() {
+        String name = prefs.getString(PROBED_PROFILE_KEY, null);
+        if (name != null) {
+            try {
+                return DecoderProfile.valueOf(name);
+            } catch (IllegalArgumentException e) {
+                Log.w(LOGTAG, "Ignoring unknown probed profile " + name);
+            }
+        }
+
+        int numOfCores = Runtime.getRuntime().availableProcessors();
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        boolean isLowRam = (am == null) || am.isLowRamDevice();
+        DecoderProfile profile;
+        if (numOfCores >= 4 && !isLowRam) {
+            profile = DecoderProfile.FULL_QUALITY;
+        } else if (numOfCores >= 2) {
+            profile = DecoderProfile.FAST;
+        } else {
+            profile = DecoderProfile.HURRY_UP;
+        }
+        prefs.edit().putString(PROBED_PROFILE_KEY, profile.name()).apply();
+        Log.d(LOGTAG, "Probed device with " + numOfCores + " cores" +
+                (isLowRam ? " and low RAM" : "") + ", starting with " + profile);
+        return profile;
+    }
+
+}
@@ -0,0 +1,213 @@
+package tk.josemmo.movistartv.player;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkInfo;
+import android.net.Uri;
+import android.net.wifi.WifiInfo;
+import android.net.wifi.WifiManager;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.videolan.libvlc.Media;
+
+import tk.josemmo.movistartv.client.RtpJitterProbe;
+
+/**
+ * Chooses the network caching of multicast streams for each network interface.
+ * <p>
+ * Caching starts from a default for the link type (low on Ethernet for fast zapping, higher on
+ * Wi-Fi) and is then learned from the measured jitter and loss of the streams being played.
+ * Raising the caching is applied right away, while lowering it requires several consecutive
+ * measurements to avoid flapping between values.
+ */
+public class NetworkCaching {
+    private static final String LOGTAG = "NetworkCaching";
+    private static final String PREFS_NAME = "NetworkCaching";
+    private static final String CACHING_KEY_PREFIX = "caching.";
+    private static final String LOW_SAMPLES_KEY_PREFIX = "lowSamples.";
+    private static final int ETHERNET_CACHING_MS = 300;
+    private static final int WIFI_5GHZ_CACHING_MS = 1000;
+    private static final int WIFI_CACHING_MS = 1500;
+    private static final int DEFAULT_CACHING_MS = 1000;
+    private static final int MIN_CACHING_MS = 200;
+    private static final int MAX_CACHING_MS = 5000;
+    private static final int BASE_CACHING_MS = 150;
+    private static final int JITTER_MULTIPLIER = 8;
+    private static final double MAX_LOSS_RATIO = 0.005;
+    private static final double INCREASE_FACTOR = 1.5;
+    private static final double DECREASE_THRESHOLD = 0.7;
+    private static final int DECREASE_SAMPLES = 3;
+    private static final long PROBE_DURATION_MS = 2000;
+    private static final long PROBE_INTERVAL_MS = 5 * 60 * 1000;
+    private static long lastProbeTime = -PROBE_INTERVAL_MS;
+
+    private final Context context;
+    private final SharedPreferences prefs;
+
+    /**
+     * NetworkCaching constructor
+     * @param ctx Context
+     */
+    public NetworkCaching(Context ctx) {
+        context = ctx.getApplicationContext();
+        prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+
+    /**
+     * Apply network caching to media
+     * @param media Media not yet loaded into a player
+     */
+    public void applyTo(Media media) {
+        media.addOption(":network-caching=" + getCachingMs(RtpJitterProbe.getInterfaceName()));
+    }
+
+
+    /**
+     * On playback stalled
+     * <p>
+     * Rebuffering after the first frame means the current caching is not enough for this link.
+     */
+    public void onStall() {
+        String iface = RtpJitterProbe.getInterfaceName();
+        if (iface == null) return;
+        int current = getCachingMs(iface);
+        int caching = Math.min(MAX_CACHING_MS, (int) (current * INCREASE_FACTOR));
+        Log.d(LOGTAG, "Playback stalled on " + iface + ", raising caching to " + caching + "ms");
+        setCachingMs(iface, caching, 0);
+    }
+
+
+    /**
+     * Probe stream in background if not done recently
+     * @param mediaUri Media URI of a multicast RTP stream
+     */
+    public void maybeProbe(String mediaUri) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) return;
+        long now = SystemClock.elapsedRealtime();
+        synchronized (NetworkCaching.class) {
+            if (now - lastProbeTime < PROBE_INTERVAL_MS) return;
+            lastProbeTime = now;
+        }
+
+        Uri uri = Uri.parse(mediaUri);
+        final String host = uri.getHost();
+        final int port = uri.getPort();
+        if (host == null || port <= 0) return;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    RtpJitterProbe.Result result = new RtpJitterProbe(host, port).measure(PROBE_DURATION_MS);
+                    if (result != null) {
+                        onSample(result.interfaceName, result.jitterMs, result.lossRatio);
+                    }
+                } catch (Exception e) {
+                    Log.e(LOGTAG, "Failed to probe " + host + ":" + port);
+                    e.printStackTrace();
+                }
+            }
+        }).start();
+    }
+
+
+    /**
+     * On stream measured
+     * @param iface     Network interface name
+     * @param jitterMs  Inter-arrival jitter in milliseconds
+     * @param lossRatio Ratio of lost packets between 0 and 1
+     */
+    private void onSample(String iface, double jitterMs, double lossRatio) {
+        int current = getCachingMs(iface);
+        double target = BASE_CACHING_MS + JITTER_MULTIPLIER * jitterMs;
+        if (lossRatio > MAX_LOSS_RATIO) {
+            target = Math.max(target, current) * INCREASE_FACTOR;
+        }
+        int caching = (int) Math.max(MIN_CACHING_MS, Math.min(MAX_CACHING_MS, target));
+        Log.d(LOGTAG, "Measured " + String.format("%.2f", jitterMs) + "ms of jitter and " +
+                String.format("%.2f", lossRatio * 100) + "% of loss on " + iface +
+                ", target caching is " + caching + "ms");
+
+        if (caching > current) {
+            setCachingMs(iface, caching, 0);
+        } else if (caching < current * DECREASE_THRESHOLD) {
+            int lowSamples = prefs.getInt(LOW_SAMPLES_KEY_PREFIX + iface, 0) + 1;
+            if (lowSamples >= DECREASE_SAMPLES) {
+                setCachingMs(iface, (current + caching) / 2, 0);
+            } else {
+                setCachingMs(iface, current, lowSamples);
+            }
+        } else {
+            setCachingMs(iface, current, 0);
+        }
+    }
+
+
+    /**
+     * Get network caching
+     * @param  iface Network interface name or NULL if unknown
+     * @return       Network caching in milliseconds
+     */
+    private int getCachingMs(String iface) {
+        int caching = (iface == null) ? -1 : prefs.getInt(CACHING_KEY_PREFIX + iface, -1);
+        return (caching > 0) ? caching : getDefaultCachingMs();
+    }
+
+
+    /**
+     * Set network caching
+     * @param iface      Network interface name
+     * @param caching    Network caching in milliseconds
+     * @param lowSamples Consecutive measurements asking for lower caching
+     */
+    private void setCachingMs(String iface, int caching, int lowSamples) {
+        prefs.edit()
+                .putInt(CACHING_KEY_PREFIX + iface, caching)
+                .putInt(LOW_SAMPLES_KEY_PREFIX + iface, lowSamples)
+                .apply();
+    }
+
+
+    /**
+     * Get default network caching
+     * @return Network caching in milliseconds for the type of the active link
+     */
+    private int getDefaultCachingMs() {
+        ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (cm == null) {
+            return DEFAULT_CACHING_MS;
+        }
+
+        boolean isEthernet;
+        boolean isWifi;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            Network network = cm.getActiveNetwork();
+            NetworkCapabilities caps = (network == null) ? null : cm.getNetworkCapabilities(network);
+            if (caps == null) return DEFAULT_CACHING_MS;
+            isEthernet = caps.hasTransport(NetworkCapabilities.TRANSPORT_ETHERNET);
+            isWifi = caps.hasTransport(NetworkCapabilities.TRANSPORT_WIFI);
+        } else {
+            NetworkInfo info = cm.getActiveNetworkInfo();
+            if (info == null) return DEFAULT_CACHING_MS;
+            isEthernet = (info.getType() == ConnectivityManager.TYPE_ETHERNET);
+            isWifi = (info.getType() == ConnectivityManager.TYPE_WIFI);
+        }
+
+        if (isEthernet) {
+            return ETHERNET_CACHING_MS;
+        }
+        if (isWifi) {
+            WifiManager wm = (WifiManager) context.getSystemService(Context.WIFI_SERVICE);
+            WifiInfo info = (wm == null) ? null : wm.getConnectionInfo();
+            boolean is5Ghz = (info != null && info.getFrequency() > 4900);
+            return is5Ghz ? WIFI_5GHZ_CACHING_MS : WIFI_CACHING_MS;
+        }
+        return DEFAULT_CACHING_MS;
+    }
+
+}
@@ -0,0 +1,212 @@
+package tk.josemmo.movistartv.player;
+
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Process-wide histograms of tune latencies.
+ * <p>
+ * Every tune is traced from the channel change request to the media being loaded, the first
+ * video frame being rendered and playback becoming steady (no longer buffering). Latencies are
+ * recorded into lock-free histograms with power-of-two millisecond buckets, which can be dumped
+ * at any time from any thread.
+ */
+public class TuneStats {
+    public static final int TUNE_TO_LOAD = 0;
+    public static final int LOAD_TO_FIRST_FRAME = 1;
+    public static final int TUNE_TO_FIRST_FRAME = 2;
+    public static final int TUNE_TO_STEADY = 3;
+    private static final String[] STAGE_NAMES = {
+        "tune->load", "load->frame", "tune->frame", "tune->steady"
+    };
+    private static final int NUM_OF_STAGES = STAGE_NAMES.length;
+    private static final int NUM_OF_BUCKETS = 18;
+
+    private static final AtomicLongArray buckets = new AtomicLongArray(NUM_OF_STAGES * NUM_OF_BUCKETS);
+    private static final AtomicLongArray sums = new AtomicLongArray(NUM_OF_STAGES);
+    private static final AtomicLongArray maximums = new AtomicLongArray(NUM_OF_STAGES);
+    private static final AtomicLongArray counters = new AtomicLongArray(2);
+    private static final int TUNES = 0;
+    private static final int ERRORS = 1;
+
+    /**
+     * Trace of a single tune
+     * <p>
+     * Not thread-safe, every trace must be updated from a single thread.
+     */
+    public static class Trace {
+        private final long tuneTime;
+        private long loadTime = -1;
+        private long firstFrameTime = -1;
+        private boolean isSteady = false;
+        private boolean hasFailed = false;
+
+        /**
+         * Trace constructor
+         */
+        private Trace() {
+            tuneTime = SystemClock.elapsedRealtime();
+            counters.incrementAndGet(TUNES);
+        }
+
+
+        /**
+         * On media loaded
+         */
+        public void onLoad() {
+            if (loadTime >= 0) return;
+            loadTime = SystemClock.elapsedRealtime();
+            record(TUNE_TO_LOAD, loadTime - tuneTime);
+        }
+
+
+        /**
+         * On first frame rendered
+         */
+        public void onFirstFrame() {
+            if (firstFrameTime >= 0 || loadTime < 0) return;
+            firstFrameTime = SystemClock.elapsedRealtime();
+            record(LOAD_TO_FIRST_FRAME, firstFrameTime - loadTime);
+            record(TUNE_TO_FIRST_FRAME, firstFrameTime - tuneTime);
+        }
+
+
+        /**
+         * On steady playback
+         */
+        public void onSteady() {
+            if (isSteady || firstFrameTime < 0) return;
+            isSteady = true;
+            record(TUNE_TO_STEADY, SystemClock.elapsedRealtime() - tuneTime);
+        }
+
+
+        /**
+         * On error
+         */
+        public void onError() {
+            if (hasFailed) return;
+            hasFailed = true;
+            counters.incrementAndGet(ERRORS);
+        }
+
+
+        /**
+         * Has first frame
+         * @return Whether the first frame has already been rendered
+         */
+        public boolean hasFirstFrame() {
+            return firstFrameTime >= 0;
+        }
+    }
+
+
+    /**
+     * Start trace
+     * @return New tune trace, starting now
+     */
+    public static Trace startTrace() {
+        return new Trace();
+    }
+
+
+    /**
+     * Record latency
+     * @param stage Stage
+     * @param ms    Latency in milliseconds
+     */
+    static void record(int stage, long ms) {
+        ms = Math.max(0, ms);
+        int bucket = Math.min(NUM_OF_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(ms));
+        buckets.incrementAndGet(stage*NUM_OF_BUCKETS + bucket);
+        sums.addAndGet(stage, ms);
+        long max;
+        while ((max = maximums.get(stage)) < ms && !maximums.compareAndSet(stage, max, ms)) {
+            // Retry until the maximum is updated
+        }
+    }
+
+
+    /**
+     * Reset all histograms
+     */
+    public static void reset() {
+        for (int i=0; i<buckets.length(); i++) buckets.set(i, 0);
+        for (int i=0; i<NUM_OF_STAGES; i++) {
+            sums.set(i, 0);
+            maximums.set(i, 0);
+        }
+        counters.set(TUNES, 0);
+        counters.set(ERRORS, 0);
+    }
+
+
+    /**
+     * Dump histograms
+     * @param writer Writer where to print histograms
+     */
+    public static void dump(PrintWriter writer) {
+        writer.println("Tunes: " + counters.get(TUNES) + ", errors: " + counters.get(ERRORS));
+        for (int stage=0; stage<NUM_OF_STAGES; stage++) {
+            long[] counts = new long[NUM_OF_BUCKETS];
+            long total = 0;
+            for (int i=0; i<NUM_OF_BUCKETS; i++) {
+                counts[i] = buckets.get(stage*NUM_OF_BUCKETS + i);
+                total += counts[i];
+            }
+
+            long max = maximums.get(stage);
+            writer.print(STAGE_NAMES[stage] + ": n=" + total);
+            if (total > 0) {
+                writer.print(" avg=" + (sums.get(stage) / total) + "ms" +
+                        " p50<" + getPercentile(counts, total, max, 0.5) + "ms" +
+                        " p90<" + getPercentile(counts, total, max, 0.9) + "ms" +
+                        " p99<" + getPercentile(counts, total, max, 0.99) + "ms" +
+                        " max=" + max + "ms");
+            }
+            writer.println();
+
+            for (int i=0; i<NUM_OF_BUCKETS; i++) {
+                if (counts[i] == 0) continue;
+                if (i == NUM_OF_BUCKETS - 1) {
+                    writer.println("  >=" + getBucketLimit(i - 1) + "ms: " + counts[i]);
+                } else {
+                    writer.println("  <" + getBucketLimit(i) + "ms: " + counts[i]);
+                }
+            }
+        }
+        writer.flush();
+    }
+
+
+    /**
+     * Get percentile
+     * @param  counts     Bucket counts
+     * @param  total      Total count
+     * @param  max        Maximum recorded value
+     * @param  percentile Percentile between 0 and 1
+     * @return            Upper limit of the bucket containing the percentile, capped to maximum
+     */
+    private static long getPercentile(long[] counts, long total, long max, double percentile) {
+        long target = (long) Math.ceil(total * percentile);
+        long acc = 0;
+        for (int i=0; i<counts.length; i++) {
+            acc += counts[i];
+            if (acc >= target) return Math.min(getBucketLimit(i), max + 1);
+        }
+        return max + 1;
+    }
+
+
+    /**
+     * Get bucket limit
+     * @param  bucket Bucket index
+     * @return        Exclusive upper limit in milliseconds
+     */
+    private static long getBucketLimit(int bucket) {
+        return (bucket == NUM_OF_BUCKETS - 1) ? Long.MAX_VALUE : (1L << bucket);
+    }
+
+}
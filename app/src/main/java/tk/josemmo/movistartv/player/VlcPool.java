@@ -0,0 +1,191 @@
+package tk.josemmo.movistartv.player;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.videolan.libvlc.LibVLC;
+import org.videolan.libvlc.MediaPlayer;
+import org.videolan.libvlc.interfaces.IVLCVout;
+
+import tk.josemmo.movistartv.BuildConfig;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * Process-wide, reference-counted LibVLC instance with a small pool of media players.
+ * <p>
+ * LibVLC is only initialized once while any reference is held, and players are reset and kept
+ * for the next session instead of being destroyed, so tuning does not pay for native
+ * initialization.
+ */
+public class VlcPool {
+    private static final String LOGTAG = "VlcPool";
+    private static final Object LOCK = new Object();
+    private static final int MAX_IDLE_PLAYERS = 2;
+    private static VlcPool instance = null;
+
+    private final Context context;
+    private final ArrayDeque<MediaPlayer> idlePlayers = new ArrayDeque<>();
+    private LibVLC libVlc = null;
+    private int refCount = 0;
+    private boolean released = false;
+
+    /**
+     * VlcPool constructor
+     * @param context Application context
+     */
+    private VlcPool(Context context) {
+        this.context = context;
+    }
+
+
+    /**
+     * Get LibVLC options
+     * @return LibVLC options
+     */
+    private static ArrayList<String> getOptions() {
+        ArrayList<String> options = new ArrayList<>();
+        if (BuildConfig.DEBUG) {
+            options.add("-vvv");
+        }
+
+        // Stream-related options
+        options.add("--http-reconnect");
+        options.add("--clock-jitter=0");
+        options.add("--clock-synchro=0");
+
+        // Decoding and deinterlacing options are set per media, see DecoderProfile
+        return options;
+    }
+
+
+    /**
+     * Acquire shared instance
+     * <p>
+     * Every call must be balanced with a call to {@link #release()}.
+     * @param  context Context
+     * @return         Shared instance
+     */
+    public static VlcPool acquire(Context context) {
+        synchronized (LOCK) {
+            if (instance == null) {
+                instance = new VlcPool(context.getApplicationContext());
+            }
+            instance.refCount++;
+            return instance;
+        }
+    }
+
+
+    /**
+     * Pre-warm in background
+     * <p>
+     * Initializes LibVLC and leaves an idle player ready for the first session.
+     */
+    public void prewarm() {
+        new Thread("VlcPrewarm") {
+            @Override
+            public void run() {
+                try {
+                    recyclePlayer(obtainPlayer());
+                } catch (IllegalStateException e) {
+                    Log.d(LOGTAG, "Pool released before being pre-warmed");
+                }
+            }
+        }.start();
+    }
+
+
+    /**
+     * Release reference
+     * <p>
+     * LibVLC and idle players are destroyed once the last reference is released.
+     */
+    public void release() {
+        synchronized (LOCK) {
+            refCount--;
+            if (refCount > 0) return;
+
+            for (MediaPlayer player : idlePlayers) {
+                player.release();
+            }
+            idlePlayers.clear();
+            if (libVlc != null) {
+                libVlc.release();
+                libVlc = null;
+            }
+            released = true;
+            if (instance == this) {
+                instance = null;
+            }
+            Log.d(LOGTAG, "Released LibVLC");
+        }
+    }
+
+
+    /**
+     * Get LibVLC instance
+     * @return LibVLC instance, initialized on first use
+     * @throws IllegalStateException if all references have been released
+     */
+    public LibVLC getLibVlc() {
+        synchronized (LOCK) {
+            if (released) {
+                throw new IllegalStateException("LibVLC has already been released");
+            }
+            if (libVlc == null) {
+                long startTime = System.nanoTime();
+                libVlc = new LibVLC(context, getOptions());
+                Log.d(LOGTAG, "Initialized LibVLC in " +
+                        ((System.nanoTime() - startTime) / 1000000) + "ms");
+            }
+            return libVlc;
+        }
+    }
+
+
+    /**
+     * Obtain player
+     * @return Idle player or a new one if none available
+     * @throws IllegalStateException if all references have been released
+     */
+    public MediaPlayer obtainPlayer() {
+        synchronized (LOCK) {
+            MediaPlayer player = idlePlayers.poll();
+            if (player != null) {
+                return player;
+            }
+
+            // Created under the lock so a concurrent release cannot free LibVLC in between
+            return new MediaPlayer(getLibVlc());
+        }
+    }
+
+
+    /**
+     * Recycle player
+     * <p>
+     * Resets the player and keeps it for later use, or destroys it if the pool is full.
+     * @param player Player obtained from this instance
+     */
+    public void recyclePlayer(MediaPlayer player) {
+        player.setEventListener(null);
+        player.stop();
+        IVLCVout vlcVout = player.getVLCVout();
+        if (vlcVout.areViewsAttached()) {
+            vlcVout.detachViews();
+        }
+        player.setMedia(null);
+        player.setVolume(100);
+
+        synchronized (LOCK) {
+            if (refCount > 0 && idlePlayers.size() < MAX_IDLE_PLAYERS) {
+                idlePlayers.add(player);
+                return;
+            }
+        }
+        player.release();
+    }
+
+}
@@ -0,0 +1,116 @@
+package tk.josemmo.movistartv.tv;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkInfo;
+import android.os.Build;
+
+/**
+ * Decides when a session may keep an extra stream pre-tuned.
+ * <p>
+ * Pre-tuning is opt-in and limited to a single extra stream. It is skipped on metered or slow
+ * links, and backs off exponentially while predictions keep missing.
+ */
+public class PreTunePolicy {
+    private static final String PREFS_NAME = "PreTune";
+    private static final String ENABLED_KEY = "enabled";
+    private static final int MIN_BANDWIDTH_KBPS = 30000;
+    private static final int MAX_TUNES_TO_SKIP = 16;
+    public static final long PRETUNE_DELAY_MS = 1500;
+
+    private final Context context;
+    private int consecutiveMisses = 0;
+    private int tunesToSkip = 0;
+
+    /**
+     * PreTunePolicy constructor
+     * @param context Context
+     */
+    public PreTunePolicy(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+
+    /**
+     * Is pre-tuning enabled
+     * @param  ctx Context
+     * @return     Whether pre-tuning is enabled
+     */
+    public static boolean isEnabled(Context ctx) {
+        return ctx.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+                .getBoolean(ENABLED_KEY, false);
+    }
+
+
+    /**
+     * Set pre-tuning enabled
+     * @param ctx     Context
+     * @param enabled Whether to enable pre-tuning
+     */
+    public static void setEnabled(Context ctx, boolean enabled) {
+        ctx.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+                .edit()
+                .putBoolean(ENABLED_KEY, enabled)
+                .apply();
+    }
+
+
+    /**
+     * Should pre-tune after a channel change
+     * @return Whether to pre-tune the predicted channel
+     */
+    public boolean shouldPreTune() {
+        if (tunesToSkip > 0) {
+            tunesToSkip--;
+            return false;
+        }
+        return !isLinkConstrained();
+    }
+
+
+    /**
+     * On pre-tuned channel used
+     */
+    public void onHit() {
+        consecutiveMisses = 0;
+        tunesToSkip = 0;
+    }
+
+
+    /**
+     * On pre-tuned channel discarded
+     */
+    public void onMiss() {
+        consecutiveMisses++;
+        if (consecutiveMisses >= 2) {
+            tunesToSkip = Math.min(MAX_TUNES_TO_SKIP, 1 << Math.min(consecutiveMisses - 2, 4));
+        }
+    }
+
+
+    /**
+     * Is link constrained
+     * @return Whether the active network cannot afford an extra stream
+     */
+    private boolean isLinkConstrained() {
+        ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (cm == null || cm.isActiveNetworkMetered()) {
+            return true;
+        }
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            Network network = cm.getActiveNetwork();
+            NetworkCapabilities caps = (network == null) ? null : cm.getNetworkCapabilities(network);
+            if (caps == null) return true;
+            if (caps.hasTransport(NetworkCapabilities.TRANSPORT_ETHERNET)) return false;
+            return caps.getLinkDownstreamBandwidthKbps() < MIN_BANDWIDTH_KBPS;
+        }
+
+        // Bandwidth estimates are not available, only trust wired links
+        NetworkInfo info = cm.getActiveNetworkInfo();
+        return info == null || info.getType() != ConnectivityManager.TYPE_ETHERNET;
+    }
+
+}
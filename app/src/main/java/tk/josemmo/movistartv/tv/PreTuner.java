@@ -0,0 +1,207 @@
+package tk.josemmo.movistartv.tv;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import org.videolan.libvlc.Media;
+import org.videolan.libvlc.MediaPlayer;
+
+import tk.josemmo.movistartv.player.DecoderProfiles;
+import tk.josemmo.movistartv.player.NetworkCaching;
+import tk.josemmo.movistartv.player.VlcPool;
+
+/**
+ * Keeps the channel most likely to be tuned next joined in a secondary, muted player, so it can
+ * be swapped in without waiting for the multicast join and network caching.
+ * <p>
+ * The pre-tuned player has no surface, so its video track is kept disabled instead of decoding
+ * into a missing window. The adopting player re-enables it once the real surface is attached.
+ * <p>
+ * After zapping to an adjacent dial the next one in the same direction is predicted, while after
+ * jumping to a distant dial the previous channel is predicted instead.
+ */
+class PreTuner {
+    private static final String LOGTAG = "PreTuner";
+
+    private final Context context;
+    private final PreTunePolicy policy;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private VlcPool pool = null;
+    private MediaPlayer player = null;
+    private String mediaUri = null;
+    private Uri currentChannel = null;
+    private Uri previousChannel = null;
+    private Runnable pendingPreTune = null;
+
+    private final MediaPlayer.EventListener eventListener = new MediaPlayer.EventListener() {
+        @Override
+        public void onEvent(MediaPlayer.Event event) {
+            if (event.type == MediaPlayer.Event.ESAdded && player != null) {
+                player.setVideoTrackEnabled(false);
+            }
+        }
+    };
+
+    /**
+     * PreTuner constructor
+     * @param context Context
+     */
+    PreTuner(Context context) {
+        this.context = context;
+        this.policy = new PreTunePolicy(context);
+    }
+
+
+    /**
+     * Take pre-tuned player
+     * <p>
+     * Any other pre-tuned stream is stopped, as it is no longer useful. Only call it when the
+     * channel changes, otherwise program boundaries would count as missed predictions.
+     * @param  mediaUri Media URI about to be played
+     * @return          Player already playing that media or NULL if not pre-tuned
+     */
+    @Nullable
+    MediaPlayer take(String mediaUri) {
+        cancelPending();
+        if (player == null) {
+            return null;
+        }
+        if (mediaUri.equals(this.mediaUri)) {
+            MediaPlayer res = player;
+            player = null;
+            this.mediaUri = null;
+            policy.onHit();
+            Log.d(LOGTAG, "Using pre-tuned " + mediaUri);
+            return res;
+        }
+        policy.onMiss();
+        stop();
+        return null;
+    }
+
+
+    /**
+     * On channel tuned
+     * @param channelUri Channel URI now playing
+     */
+    void onTuned(Uri channelUri) {
+        if (!channelUri.equals(currentChannel)) {
+            previousChannel = currentChannel;
+            currentChannel = channelUri;
+        }
+
+        cancelPending();
+        if (!policy.shouldPreTune()) {
+            stop();
+            return;
+        }
+        final Uri nextChannel = predictNextChannel();
+        if (nextChannel == null) {
+            stop();
+            return;
+        }
+        pendingPreTune = new Runnable() {
+            @Override
+            public void run() {
+                pendingPreTune = null;
+                preTune(nextChannel);
+            }
+        };
+        handler.postDelayed(pendingPreTune, PreTunePolicy.PRETUNE_DELAY_MS);
+    }
+
+
+    /**
+     * Predict next channel
+     * @return Channel URI or NULL if nothing can be predicted
+     */
+    @Nullable
+    private Uri predictNextChannel() {
+        TuneCache cache = TuneCache.getInstance(context);
+        Uri up = cache.getAdjacentChannel(currentChannel, true);
+        Uri down = cache.getAdjacentChannel(currentChannel, false);
+        if (previousChannel == null || previousChannel.equals(down)) {
+            return up;
+        }
+        if (previousChannel.equals(up)) {
+            return down;
+        }
+        return previousChannel;
+    }
+
+
+    /**
+     * Pre-tune channel
+     * @param channelUri Channel URI
+     */
+    private void preTune(Uri channelUri) {
+        String uri = TuneCache.getInstance(context).getMediaUri(channelUri);
+        if (uri == null || uri.equals(mediaUri)) {
+            return;
+        }
+        stop();
+
+        try {
+            if (pool == null) {
+                pool = VlcPool.acquire(context);
+            }
+            player = pool.obtainPlayer();
+            player.setVolume(0);
+            player.setEventListener(eventListener);
+            Media media = new Media(pool.getLibVlc(), Uri.parse(uri));
+            new DecoderProfiles(context).getProfile(uri).applyTo(media);
+            new NetworkCaching(context).applyTo(media);
+            player.setMedia(media);
+            media.release();
+            player.play();
+            mediaUri = uri;
+            Log.d(LOGTAG, "Pre-tuned " + uri);
+        } catch (Exception e) {
+            Log.e(LOGTAG, "Failed to pre-tune " + uri);
+            e.printStackTrace();
+            stop();
+        }
+    }
+
+
+    /**
+     * Cancel pending pre-tune
+     */
+    private void cancelPending() {
+        if (pendingPreTune != null) {
+            handler.removeCallbacks(pendingPreTune);
+            pendingPreTune = null;
+        }
+    }
+
+
+    /**
+     * Stop pre-tuned stream
+     */
+    void stop() {
+        cancelPending();
+        if (player != null) {
+            pool.recyclePlayer(player);
+            player = null;
+        }
+        mediaUri = null;
+    }
+
+
+    /**
+     * Release
+     */
+    void release() {
+        stop();
+        if (pool != null) {
+            pool.release();
+            pool = null;
+        }
+    }
+
+}
@@ -19,14 +19,13 @@ package tk.josemmo.movistartv.tv;
 import android.app.job.JobInfo;
 import android.app.job.JobScheduler;
 import android.content.BroadcastReceiver;
-import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Build;
 import com.google.android.media.tv.companionlibrary.sync.EpgSyncJobService;
 import java.util.List;
 
-import tk.josemmo.movistartv.JobService;
+import tk.josemmo.movistartv.SyncScheduler;
 
 /**
  * This BroadcastReceiver is set up to make sure sync job can schedule after reboot. Because
@@ -43,9 +42,8 @@ public class RichBootReceiver extends BroadcastReceiver {
             String inputId = context.getSharedPreferences(EpgSyncJobService.PREFERENCE_EPG_SYNC,
                     Context.MODE_PRIVATE).getString(EpgSyncJobService.BUNDLE_KEY_INPUT_ID, null);
             if (inputId != null) {
-                // Set up periodic sync only when input has set up
-                EpgSyncJobService.setUpPeriodicSync(context, inputId,
-                        new ComponentName(context, JobService.class));
+                // Probes request full syncs when the EPG changes, only when input has set up
+                SyncScheduler.scheduleProbe(context);
             }
             return;
         }
@@ -26,6 +26,7 @@ import com.google.android.media.tv.companionlibrary.setup.ChannelSetupStepFragme
 
 import tk.josemmo.movistartv.JobService;
 import tk.josemmo.movistartv.R;
+import tk.josemmo.movistartv.SyncScheduler;
 
 /**
  * Fragment which shows a sample UI for registering channels and setting up SampleJobService to
@@ -38,6 +39,7 @@ public class RichSetupFragment extends ChannelSetupStepFragment<JobService> {
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         mInputId = getActivity().getIntent().getStringExtra(TvInputInfo.EXTRA_INPUT_ID);
+        SyncScheduler.scheduleProbe(getActivity());
     }
 
     @Override
@@ -28,14 +28,64 @@ import androidx.annotation.RequiresApi;
 
 import com.google.android.media.tv.companionlibrary.BaseTvInputService;
 import com.google.android.media.tv.companionlibrary.TvPlayer;
-import com.google.android.media.tv.companionlibrary.model.Channel;
-import com.google.android.media.tv.companionlibrary.model.ModelUtils;
 import com.google.android.media.tv.companionlibrary.model.Program;
 import com.google.android.media.tv.companionlibrary.model.RecordedProgram;
 
+import org.videolan.libvlc.MediaPlayer;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.Arrays;
+
 import tk.josemmo.movistartv.player.AppPlayer;
+import tk.josemmo.movistartv.player.TuneStats;
+import tk.josemmo.movistartv.player.VlcPool;
 
 public class RichTvInputService extends BaseTvInputService {
+    private VlcPool vlcPool = null;
+
+    /**
+     * On create
+     */
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        TuneCache.getInstance(this).warm();
+
+        // Keep LibVLC alive for the lifetime of this service
+        vlcPool = VlcPool.acquire(this);
+        vlcPool.prewarm();
+    }
+
+
+    /**
+     * Dump tune latencies, e.g. "adb shell dumpsys activity service .tv.RichTvInputService"
+     * @param fd     File descriptor
+     * @param writer Writer
+     * @param args   Arguments, "reset" to clear histograms after dumping
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        TuneStats.dump(writer);
+        if (args != null && Arrays.asList(args).contains("reset")) {
+            TuneStats.reset();
+        }
+    }
+
+
+    /**
+     * On destroy
+     */
+    @Override
+    public void onDestroy() {
+        if (vlcPool != null) {
+            vlcPool.release();
+            vlcPool = null;
+        }
+        super.onDestroy();
+    }
+
+
     /**
      * On create session
      * @param  inputId Input ID
@@ -57,6 +107,11 @@ public class RichTvInputService extends BaseTvInputService {
         private static final String LOGTAG = "RichTvInputService";
         private final Context mContext;
         private AppPlayer mPlayer = null;
+        private PreTuner mPreTuner = null;
+        private TuneStats.Trace mTuneTrace = null;
+        private boolean mIsTuning = false;
+        private Uri mPlayingChannelUri = null;
+        private String mPlayingMediaUri = null;
 
         /**
          * RichTvInputSessionImpl constructor
@@ -66,6 +121,9 @@ public class RichTvInputService extends BaseTvInputService {
         RichTvInputSessionImpl(Context context, String inputId) {
             super(context, inputId);
             mContext = context;
+            if (PreTunePolicy.isEnabled(context)) {
+                mPreTuner = new PreTuner(context);
+            }
             Log.d(LOGTAG, "Started service");
         }
 
@@ -76,6 +134,17 @@ public class RichTvInputService extends BaseTvInputService {
         private void loadTvPlayerIfReleased() {
             if (mPlayer == null) {
                 mPlayer = new AppPlayer(mContext);
+                mPlayer.registerCallback(new AppPlayer.Callback() {
+                    @Override
+                    public void onVideoAvailable() {
+                        notifyVideoAvailable();
+                    }
+
+                    @Override
+                    public void onVideoUnavailable(int reason) {
+                        notifyVideoUnavailable(reason);
+                    }
+                });
             }
         }
 
@@ -113,12 +182,39 @@ public class RichTvInputService extends BaseTvInputService {
         public boolean onPlayProgram(@Nullable Program program, long startPosMs) {
             Log.d(LOGTAG, "onPlayProgram called");
             Uri channelUri = getCurrentChannelUri();
-            Channel channel = ModelUtils.getChannel(mContext.getContentResolver(), channelUri);
+            String mediaUri = TuneCache.getInstance(mContext).getMediaUri(channelUri);
+            if (mediaUri == null) {
+                Log.e(LOGTAG, "Failed to get media URI for " + channelUri);
+                notifyVideoUnavailable(TvInputManager.VIDEO_UNAVAILABLE_REASON_UNKNOWN);
+                return false;
+            }
+
+            // Called again at every program boundary, keep playing the same stream
+            boolean isTuning = mIsTuning;
+            mIsTuning = false;
+            if (!isTuning && mPlayer != null && mediaUri.equals(mPlayingMediaUri)) {
+                Log.d(LOGTAG, "Already playing " + mediaUri);
+                return true;
+            }
 
+            // Pre-tuned player is only taken (or discarded) when the channel actually changes
+            boolean isNewChannel = !channelUri.equals(mPlayingChannelUri);
             loadTvPlayerIfReleased();
-            mPlayer.loadMedia("rtp://@" + channel.getInternalProviderData().getVideoUrl());
+            mPlayer.setTuneTrace(mTuneTrace);
+            mTuneTrace = null;
+            MediaPlayer preTuned = (mPreTuner == null || !isNewChannel) ? null : mPreTuner.take(mediaUri);
+            if (preTuned == null) {
+                mPlayer.loadMedia(mediaUri);
+            } else {
+                mPlayer.adoptPlayer(preTuned, mediaUri);
+            }
 
             mPlayer.play();
+            mPlayingChannelUri = channelUri;
+            mPlayingMediaUri = mediaUri;
+            if (mPreTuner != null && isNewChannel) {
+                mPreTuner.onTuned(channelUri);
+            }
             return true;
         }
 
@@ -126,6 +222,8 @@ public class RichTvInputService extends BaseTvInputService {
         @Override
         public boolean onTune(Uri channelUri) {
             Log.d(LOGTAG, "onTune called with URI " + channelUri);
+            mTuneTrace = TuneStats.startTrace();
+            mIsTuning = true;
             return super.onTune(channelUri);
         }
 
@@ -149,6 +247,12 @@ public class RichTvInputService extends BaseTvInputService {
             Log.d(LOGTAG, "onRelease called");
             super.onRelease();
 
+            if (mPreTuner != null) {
+                mPreTuner.release();
+                mPreTuner = null;
+            }
+            mPlayingChannelUri = null;
+            mPlayingMediaUri = null;
             if (mPlayer != null) {
                 mPlayer.stop();
                 mPlayer.setSurface(null);
@@ -167,6 +271,10 @@ public class RichTvInputService extends BaseTvInputService {
             Log.d(LOGTAG, "onBlockContent called");
             super.onBlockContent(rating);
 
+            if (mPreTuner != null) {
+                mPreTuner.stop();
+            }
+            mPlayingMediaUri = null;
             if (mPlayer != null) {
                 mPlayer.stop();
             }
@@ -0,0 +1,239 @@
+package tk.josemmo.movistartv.tv;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.media.tv.TvContract;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.google.android.media.tv.companionlibrary.model.Channel;
+import com.google.android.media.tv.companionlibrary.model.InternalProviderData;
+import com.google.android.media.tv.companionlibrary.model.ModelUtils;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Process-wide cache of media URIs and dials by channel URI.
+ * <p>
+ * The cache is warmed in background when the input service starts and is invalidated by changes
+ * to the channels table, so tuning a channel does not need to query the TV provider before
+ * playback starts.
+ */
+public class TuneCache {
+    private static final String LOGTAG = "TuneCache";
+    private static TuneCache instance = null;
+
+    private final ContentResolver resolver;
+    private final ConcurrentHashMap<Uri, Entry> entries = new ConcurrentHashMap<>();
+    private final TreeMap<Integer, Uri> channelsByDial = new TreeMap<>();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private int generation = 0;
+
+    /**
+     * Cached channel
+     */
+    private static class Entry {
+        final String mediaUri;
+        final int dial;
+
+        Entry(String mediaUri, int dial) {
+            this.mediaUri = mediaUri;
+            this.dial = dial;
+        }
+    }
+
+    /**
+     * Get instance
+     * @param  ctx Context
+     * @return     Shared instance
+     */
+    public static synchronized TuneCache getInstance(Context ctx) {
+        if (instance == null) {
+            instance = new TuneCache(ctx.getApplicationContext());
+        }
+        return instance;
+    }
+
+
+    /**
+     * TuneCache constructor
+     * @param ctx Application context
+     */
+    private TuneCache(Context ctx) {
+        resolver = ctx.getContentResolver();
+        resolver.registerContentObserver(TvContract.Channels.CONTENT_URI, true,
+                new ContentObserver(new Handler(Looper.getMainLooper())) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        onChange(selfChange, null);
+                    }
+
+                    @Override
+                    public void onChange(boolean selfChange, Uri uri) {
+                        invalidate();
+                    }
+                });
+    }
+
+
+    /**
+     * Warm cache in background
+     */
+    public void warm() {
+        final int expectedGeneration = getGeneration();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                HashMap<Uri, Entry> res = new HashMap<>();
+                try {
+                    List<Channel> channels = ModelUtils.getChannels(resolver);
+                    for (Channel channel : channels) {
+                        Entry entry = buildEntry(channel);
+                        if (entry != null) {
+                            res.put(TvContract.buildChannelUri(channel.getId()), entry);
+                        }
+                    }
+                } catch (Exception e) {
+                    Log.e(LOGTAG, "Failed to warm tune cache");
+                    e.printStackTrace();
+                    return;
+                }
+                putAll(res, expectedGeneration);
+                Log.d(LOGTAG, "Warmed tune cache with " + res.size() + " channels");
+            }
+        });
+    }
+
+
+    /**
+     * Invalidate cache and warm it again
+     */
+    public void invalidate() {
+        synchronized (this) {
+            generation++;
+            entries.clear();
+            channelsByDial.clear();
+        }
+        Log.d(LOGTAG, "Channels have changed, invalidated tune cache");
+        warm();
+    }
+
+
+    /**
+     * Get media URI
+     * <p>
+     * Falls back to querying the TV provider when the channel is not cached yet.
+     * @param  channelUri Channel URI
+     * @return            Media URI or NULL if the channel cannot be played
+     */
+    @Nullable
+    public String getMediaUri(Uri channelUri) {
+        Entry entry = entries.get(channelUri);
+        if (entry != null) {
+            return entry.mediaUri;
+        }
+
+        int expectedGeneration = getGeneration();
+        Channel channel = ModelUtils.getChannel(resolver, channelUri);
+        entry = (channel == null) ? null : buildEntry(channel);
+        Log.d(LOGTAG, "Tune cache miss for " + channelUri);
+        if (entry == null) {
+            return null;
+        }
+        HashMap<Uri, Entry> res = new HashMap<>();
+        res.put(channelUri, entry);
+        putAll(res, expectedGeneration);
+        return entry.mediaUri;
+    }
+
+
+    /**
+     * Get dial
+     * @param  channelUri Channel URI
+     * @return            Dial or -1 if not cached
+     */
+    public int getDial(Uri channelUri) {
+        Entry entry = entries.get(channelUri);
+        return (entry == null) ? -1 : entry.dial;
+    }
+
+
+    /**
+     * Get adjacent channel
+     * @param  channelUri Channel URI
+     * @param  up         Whether to look for the next dial up or down, wrapping around
+     * @return            Adjacent channel URI or NULL if not available
+     */
+    @Nullable
+    public synchronized Uri getAdjacentChannel(Uri channelUri, boolean up) {
+        Entry entry = entries.get(channelUri);
+        if (entry == null || entry.dial < 0 || channelsByDial.size() < 2) {
+            return null;
+        }
+        Map.Entry<Integer, Uri> res = up ?
+                channelsByDial.higherEntry(entry.dial) :
+                channelsByDial.lowerEntry(entry.dial);
+        if (res == null) {
+            res = up ? channelsByDial.firstEntry() : channelsByDial.lastEntry();
+        }
+        return res.getValue();
+    }
+
+
+    /**
+     * Get generation
+     * @return Current generation, incremented on every invalidation
+     */
+    private synchronized int getGeneration() {
+        return generation;
+    }
+
+
+    /**
+     * Put all entries unless the cache was invalidated since they were read
+     * @param entries            Entries
+     * @param expectedGeneration Generation when entries were read
+     */
+    private synchronized void putAll(HashMap<Uri, Entry> entries, int expectedGeneration) {
+        if (generation != expectedGeneration) return;
+        this.entries.putAll(entries);
+        for (Map.Entry<Uri, Entry> entry : entries.entrySet()) {
+            if (entry.getValue().dial >= 0) {
+                channelsByDial.put(entry.getValue().dial, entry.getKey());
+            }
+        }
+    }
+
+
+    /**
+     * Build entry
+     * @param  channel Channel
+     * @return         Cache entry or NULL if channel has no video URL
+     */
+    @Nullable
+    private static Entry buildEntry(Channel channel) {
+        InternalProviderData data = channel.getInternalProviderData();
+        if (data == null || data.getVideoUrl() == null) {
+            return null;
+        }
+        int dial;
+        try {
+            dial = Integer.parseInt(channel.getDisplayNumber());
+        } catch (NumberFormatException e) {
+            dial = -1;
+        }
+        return new Entry("rtp://@" + data.getVideoUrl(), dial);
+    }
+
+}
@@ -0,0 +1,101 @@
+package tk.josemmo.movistartv.client;
+
+import android.util.SparseIntArray;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class ServiceDiscoveryParserTest {
+    @Test
+    public void parsesServiceList() throws Exception {
+        ServiceDiscovery res = parse("service-list.xml");
+        assertTrue(res.hasServiceList());
+        assertFalse(res.hasPackageDiscovery());
+
+        ServiceDiscovery.Service service = res.getService(1825);
+        assertNotNull(service);
+        assertEquals(1825, service.epgServiceName);
+        assertEquals("239.0.0.76:8208", service.address);
+        assertEquals("La 1 HD", service.name);
+        assertEquals("La 1 HD", service.shortName);
+        assertEquals("Televisión Española", service.description);
+        assertEquals("MAY_1/imSer/1825.jpg", service.logoUri);
+
+        service = res.getService(4455);
+        assertNotNull(service);
+        assertEquals(4911, service.epgServiceName);
+        assertEquals("239.0.5.185:8208", service.address);
+        assertEquals("#0 por Movistar Plus+", service.name);
+        assertEquals("Series, películas & más <sin límites>", service.description);
+    }
+
+    @Test
+    public void skipsServicesWithoutServiceName() throws Exception {
+        ServiceDiscovery res = parse("service-list.xml");
+        assertNull(res.getService(-1));
+    }
+
+    @Test
+    public void parsesPackageDiscovery() throws Exception {
+        ServiceDiscovery res = parse("package-discovery.xml");
+        assertTrue(res.hasPackageDiscovery());
+
+        SparseIntArray dials = res.getDials(Collections.singletonList("UTX32"));
+        assertEquals(2, dials.size());
+        assertEquals(1825, dials.get(1));
+        assertEquals(4455, dials.get(7));
+        assertEquals(3, res.getDials(Arrays.asList("UTX32", "UTX64")).size());
+    }
+
+    @Test
+    public void parsesPrefixedBcgDiscovery() throws Exception {
+        ServiceDiscovery res = parse("bcg-discovery.xml");
+        assertTrue(res.hasBcgDiscovery());
+        assertEquals(Arrays.asList("239.0.2.130:3937", "239.0.2.131:3937"),
+                res.getEpgEntrypoints());
+    }
+
+    @Test
+    public void stopsAtClosingTag() throws Exception {
+        byte[] file = read("package-discovery.xml");
+        byte[] padded = Arrays.copyOf(file, file.length + 64);
+        Arrays.fill(padded, file.length, file.length + 32, (byte) '\n');
+
+        ServiceDiscovery res = new ServiceDiscovery();
+        ServiceDiscoveryParser.parse(padded, padded.length, res);
+        assertEquals(2, res.getDials(Collections.singletonList("UTX32")).size());
+    }
+
+    private static ServiceDiscovery parse(String name) throws Exception {
+        byte[] file = read(name);
+        ServiceDiscovery res = new ServiceDiscovery();
+        ServiceDiscoveryParser.parse(file, file.length, res);
+        return res;
+    }
+
+    private static byte[] read(String name) throws IOException {
+        try (InputStream input = ServiceDiscoveryParserTest.class.getResourceAsStream("/sdns/" + name)) {
+            ByteArrayOutputStream res = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int length;
+            while ((length = input.read(buffer)) != -1) {
+                res.write(buffer, 0, length);
+            }
+            return res.toByteArray();
+        }
+    }
+}
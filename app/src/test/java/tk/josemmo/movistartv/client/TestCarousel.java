@@ -0,0 +1,74 @@
+package tk.josemmo.movistartv.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Builds DVB-STP carousels in memory and writes them as captures for {@link DatagramReplayer}.
+ */
+class TestCarousel {
+    private final ArrayList<byte[]> datagrams = new ArrayList<>();
+
+    /**
+     * Add file
+     * @param  fileType    File type
+     * @param  fileId      File ID
+     * @param  version     File version
+     * @param  content     File contents, must not end with zeros
+     * @param  segmentSize Payload size of every chunk but the last one
+     * @return             This instance
+     */
+    TestCarousel add(int fileType, int fileId, int version, byte[] content, int segmentSize) {
+        int numOfChunks = (content.length + segmentSize - 1) / segmentSize;
+        for (int i=0; i<numOfChunks; i++) {
+            int offset = i * segmentSize;
+            int length = Math.min(segmentSize, content.length - offset);
+            byte[] datagram = new byte[12 + length];
+            datagram[4] = (byte) fileType;
+            datagram[5] = (byte) (fileId >> 8);
+            datagram[6] = (byte) fileId;
+            datagram[7] = (byte) version;
+            int chunkField = i * 0x10;
+            int lastChunk = numOfChunks - 1;
+            datagram[8] = (byte) (chunkField >> 8);
+            datagram[9] = (byte) ((chunkField & 0xf0) | ((lastChunk >> 8) & 0x0f));
+            datagram[10] = (byte) lastChunk;
+            System.arraycopy(content, offset, datagram, 12, length);
+            datagrams.add(datagram);
+        }
+        return this;
+    }
+
+
+    /**
+     * Write capture
+     * @param  file Capture file to create
+     * @return      Replayer for that capture
+     */
+    DatagramReplayer toReplayer(File file) throws IOException {
+        try (DatagramRecorder recorder = new DatagramRecorder(file)) {
+            for (byte[] datagram : datagrams) {
+                recorder.record(ByteBuffer.wrap(datagram));
+            }
+        }
+        return new DatagramReplayer(file);
+    }
+
+
+    /**
+     * Content
+     * @param  length Length in bytes
+     * @param  seed   Seed for the contents
+     * @return        File contents without any zero byte
+     */
+    static byte[] content(int length, int seed) {
+        byte[] res = new byte[length];
+        for (int i=0; i<length; i++) {
+            res[i] = (byte) ('A' + (i + seed) % 26);
+        }
+        return res;
+    }
+
+}
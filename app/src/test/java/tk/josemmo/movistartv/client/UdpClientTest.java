@@ -0,0 +1,116 @@
+package tk.josemmo.movistartv.client;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class UdpClientTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void downloadsChangedFilesAfterUnchangedOnes() throws Exception {
+        byte[] changed = TestCarousel.content(3000, 1);
+        byte[] added = TestCarousel.content(1500, 2);
+        DatagramReplayer replayer = new TestCarousel()
+                .add(1, 1, 3, TestCarousel.content(20000, 3), 1000)
+                .add(1, 2, 7, TestCarousel.content(20000, 4), 1000)
+                .add(1, 3, 5, changed, 1000)
+                .add(1, 4, 1, added, 1000)
+                .toReplayer(tmp.newFile());
+
+        HashMap<String, Integer> versions = new HashMap<>();
+        versions.put("1-1", 3);
+        versions.put("1-2", 7);
+        versions.put("1-3", 4);
+        UdpClient client = new UdpClient("239.0.2.129:3937").setKnownVersions(versions);
+        TreeMap<String, CarouselFile> files = client.downloadRaw(replayer);
+
+        assertEquals(2, files.size());
+        assertContent(changed, files.get("1-3"));
+        assertContent(added, files.get("1-4"));
+        assertEquals(2, client.getUnchangedFiles().size());
+        assertEquals(Integer.valueOf(3), client.getUnchangedFiles().get("1-1"));
+    }
+
+    @Test(expected = IOException.class)
+    public void failsWhenCaptureEndsBeforeCompletion() throws Exception {
+        DatagramReplayer replayer = new TestCarousel()
+                .add(1, 1, 1, TestCarousel.content(5000, 1), 1000)
+                .add(1, 2, 1, TestCarousel.content(5000, 2), 1000)
+                .toReplayer(tmp.newFile())
+                .setLossPattern(DatagramReplayer.burstLoss(10, 1))
+                .setMaxRounds(1);
+        new UdpClient("239.0.2.129:3937").downloadRaw(replayer);
+    }
+
+    @Test
+    public void probeListensToWholeCycleWhenUnchanged() throws Exception {
+        DatagramReplayer replayer = new TestCarousel()
+                .add(1, 1, 3, TestCarousel.content(20000, 1), 1000)
+                .add(1, 2, 7, TestCarousel.content(3000, 2), 1000)
+                .toReplayer(tmp.newFile());
+
+        HashMap<String, Integer> versions = new HashMap<>();
+        versions.put("1-1", 3);
+        versions.put("1-2", 7);
+        UdpClient client = new UdpClient("239.0.2.129:3937")
+                .setKnownVersions(versions)
+                .setProbeOnly(true);
+        DatagramReplayer.Stats stats = replayer.replayInto(client);
+
+        assertTrue(stats.finished);
+        assertTrue(stats.sentDatagrams > replayer.getNumOfDatagrams());
+        assertFalse(client.hasChanges());
+    }
+
+    @Test
+    public void probeFindsChangedFileAfterUnchangedOnes() throws Exception {
+        DatagramReplayer replayer = new TestCarousel()
+                .add(1, 1, 3, TestCarousel.content(20000, 1), 1000)
+                .add(1, 2, 8, TestCarousel.content(3000, 2), 1000)
+                .toReplayer(tmp.newFile());
+
+        HashMap<String, Integer> versions = new HashMap<>();
+        versions.put("1-1", 3);
+        versions.put("1-2", 7);
+        UdpClient client = new UdpClient("239.0.2.129:3937")
+                .setKnownVersions(versions)
+                .setProbeOnly(true);
+        client.downloadRaw(replayer);
+
+        assertTrue(client.hasChanges());
+    }
+
+    @Test
+    public void probeFindsRemovedFile() throws Exception {
+        DatagramReplayer replayer = new TestCarousel()
+                .add(1, 1, 3, TestCarousel.content(20000, 1), 1000)
+                .toReplayer(tmp.newFile());
+
+        HashMap<String, Integer> versions = new HashMap<>();
+        versions.put("1-1", 3);
+        versions.put("1-2", 7);
+        UdpClient client = new UdpClient("239.0.2.129:3937")
+                .setKnownVersions(versions)
+                .setProbeOnly(true);
+        client.downloadRaw(replayer);
+
+        assertTrue(client.hasChanges());
+    }
+
+    private static void assertContent(byte[] expected, CarouselFile file) {
+        assertTrue(file.isComplete());
+        assertArrayEquals(expected, Arrays.copyOf(file.getData(), file.getLength()));
+    }
+}